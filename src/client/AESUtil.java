@@ -3,15 +3,15 @@ package client;
 import java.io.*;
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
+import common.Capabilities;
+import common.PayloadCompressor;
+import common.SessionCipher;
+import common.WireProtocol;
 
 public class AESUtil {
     public static byte[] encryptObject(Serializable object, SecretKey aesKey) throws Exception {
-        // Serialize object to byte[]
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream out = new ObjectOutputStream(bos);
-        out.writeObject(object);
-        out.flush();
-        byte[] serialized = bos.toByteArray();
+        // Encode object to byte[]
+        byte[] serialized = WireProtocol.encode(object);
 
         // Encrypt bytes
         Cipher cipher = Cipher.getInstance("AES");
@@ -19,15 +19,61 @@ public class AESUtil {
         return cipher.doFinal(serialized);
     }
 
+    /**
+     * Encrypt with the connection's AES-GCM context; the cipher is reused and
+     * the nonce comes from the connection's frame counter
+     */
+    public static byte[] encryptObject(Serializable object, SessionCipher cipher) throws Exception {
+        return cipher.encrypt(WireProtocol.encode(object));
+    }
+
+    /**
+     * Encrypt, compressing first when the server agreed to it (compressor not
+     * null) and it makes the payload smaller
+     */
+    public static byte[] encryptObject(Serializable object, SessionCipher cipher,
+                                       PayloadCompressor compressor) throws Exception {
+        byte[] encoded = WireProtocol.encode(object);
+        if (compressor != null) {
+            byte[] compressed = compressor.compress(encoded);
+            if (compressed != null) {
+                encoded = compressed;
+            }
+        }
+        return cipher.encrypt(encoded);
+    }
+
+    /**
+     * Capabilities to offer in the handshake; -Dchat.compression=off stops
+     * us asking for compression
+     */
+    public static int offeredCapabilities() {
+        return "off".equalsIgnoreCase(System.getProperty("chat.compression", "on")) ? 0 : Capabilities.DEFLATE;
+    }
+
+    /**
+     * Compressor for the capabilities the server accepted, or null if it did
+     * not accept compression. The level comes from -Dchat.compression.level.
+     */
+    public static PayloadCompressor compressorFor(int acceptedCapabilities) {
+        if (!Capabilities.has(acceptedCapabilities, Capabilities.DEFLATE)) {
+            return null;
+        }
+        return new PayloadCompressor(Integer.getInteger("chat.compression.level", 6),
+                PayloadCompressor.DEFAULT_THRESHOLD);
+    }
+
+    public static Object decryptObject(byte[] encrypted, SessionCipher cipher) throws Exception {
+        return WireProtocol.decode(cipher.decrypt(encrypted));
+    }
+
     public static Object decryptObject(byte[] encrypted, SecretKey aesKey) throws Exception {
         Cipher cipher = Cipher.getInstance("AES");
         cipher.init(Cipher.DECRYPT_MODE, aesKey);
         byte[] decrypted = cipher.doFinal(encrypted);
 
-        // Deserialize object
-        ByteArrayInputStream bis = new ByteArrayInputStream(decrypted);
-        ObjectInputStream in = new ObjectInputStream(bis);
-        return in.readObject();
+        // Decode object
+        return WireProtocol.decode(decrypted);
     }
 }
 
@@ -8,6 +8,18 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.Cipher;
 import java.util.Scanner;
 import common.Message;
+import common.FrameInputStream;
+import common.FrameOutputStream;
+import common.SessionCipher;
+import common.PayloadCompressor;
+import common.KeyAgreementHello;
+import common.X25519Handshake;
+import common.SessionTicket;
+import common.KeyRequest;
+import common.ResumeRequest;
+import common.ResumeResponse;
+import common.ServerKey;
+import common.PipelinedHandshake;
 import client.AESUtil;
 import java.util.HashMap;
 import java.util.Map;
@@ -16,19 +28,48 @@ import java.security.KeyFactory;
 import java.util.Base64;
 
 public class ClientConnection {
+    private static final int MAX_RECONNECT_ATTEMPTS = 3;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
     private String serverAddress;
     private int serverPort;
     private Socket socket;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private FrameInputStream in;
+    private FrameOutputStream out;
     private SecretKey aesKey;
+    private SessionCipher crypto;
+    // Set when the server accepted compression for this connection
+    private PayloadCompressor compressor;
     private String username;
     private boolean isConnected = false;
     private Map<String, PublicKey> userPublicKeys = new HashMap<>();
+    // Latest resumption ticket from the server, used to reconnect without logging in again
+    private volatile SessionTicket sessionTicket;
+    private boolean resumed = false;
+    // Username sent in a pipelined login, until the server has answered it
+    private String pipelinedUsername;
+    // Set once a server has dropped a pipelined login, so we stop offering one
+    private boolean pipelinedRefused = false;
+    // Groups outgoing chat messages into batches; null sends each message at once
+    private MessageBatcher batcher;
 
     public ClientConnection(String serverAddress, int serverPort) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
+        // Bulk senders opt in with -Dchat.batch.messages=N (N > 1)
+        int batchMessages = Integer.getInteger("chat.batch.messages", 1);
+        if (batchMessages > 1) {
+            enableBatching(batchMessages, Integer.getInteger("chat.batch.bytes", 16 * 1024),
+                    Long.getLong("chat.batch.window.ms", 5));
+        }
+    }
+
+    /**
+     * Send chat messages in batches of up to maxMessages messages or about
+     * maxBytes of text, waiting at most windowMillis for a batch to fill
+     */
+    private void enableBatching(int maxMessages, int maxBytes, long windowMillis) {
+        batcher = new MessageBatcher(this::writeEncrypted, maxMessages, maxBytes, windowMillis);
     }
 
     public void connect() {
@@ -42,35 +83,10 @@ public class ClientConnection {
                 System.out.println("RSA key pair generated and saved.");
             }
 
-            socket = new Socket(serverAddress, serverPort);
-            System.out.println("Connected to server at " + serverAddress + ":" + serverPort);
-
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-
-            // 1. Perform key exchange
-            if (!performKeyExchange()) {
-                System.out.println("Key exchange failed!");
+            if (!openSession(true)) {
                 return;
             }
 
-            // 2. Perform RSA authentication (optional)
-            if (!performRSAAuthentication()) {
-                System.out.println("RSA authentication failed!");
-                return;
-            }
-
-            // 3. Perform user authentication
-            if (!performUserAuthentication()) {
-                System.out.println("User authentication failed!");
-                return;
-            }
-
-            // 4. Send our public key to the server for E2EE
-            sendOwnPublicKey();
-            // 5. Receive all public keys from the server
-            receiveAllPublicKeys();
-
             System.out.println("Successfully authenticated as: " + username);
             isConnected = true;
 
@@ -88,11 +104,111 @@ public class ClientConnection {
         }
     }
 
-    private boolean performKeyExchange() throws Exception {
+    /**
+     * Connect and run the handshake, resuming the previous session if we hold
+     * a ticket. Without interactive, only a resumption can succeed since the
+     * user cannot be asked to log in again.
+     */
+    private boolean openSession(boolean interactive) throws Exception {
+        socket = new Socket(serverAddress, serverPort);
+        System.out.println("Connected to server at " + serverAddress + ":" + serverPort);
+
+        out = new FrameOutputStream(socket.getOutputStream());
+        in = new FrameInputStream(socket.getInputStream());
+        resumed = false;
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
+        pipelinedUsername = null;
+
+        // 1. Perform key exchange (or resume the previous session)
+        if (!performKeyExchange(interactive)) {
+            if (pipelinedRefused && interactive) {
+                // The server does not know pipelined logins; start over step by step
+                closeSocket();
+                return openSession(true);
+            }
+            System.out.println("Key exchange failed!");
+            return false;
+        }
+        crypto = new SessionCipher(aesKey, true);
+
+        boolean publicKeySent = false;
+        if (pipelinedUsername != null) {
+            // 2-4. Proof, credentials and public key went with the key exchange
+            String response = (String) decryptMessage();
+            if ("AUTH_SUCCESS".equals(response)) {
+                username = pipelinedUsername;
+                publicKeySent = true;
+                System.out.println("Login successful!");
+            } else {
+                System.out.println("Authentication failed: " + response.substring(response.indexOf(':') + 1));
+                if (!performUserAuthentication()) {
+                    System.out.println("User authentication failed!");
+                    return false;
+                }
+            }
+        } else if (!resumed) {
+            // 2. Perform RSA authentication (optional)
+            if (!performRSAAuthentication()) {
+                System.out.println("RSA authentication failed!");
+                return false;
+            }
+
+            // 3. Perform user authentication
+            if (!performUserAuthentication()) {
+                System.out.println("User authentication failed!");
+                return false;
+            }
+        }
+
+        // 4. Send our public key to the server for E2EE
+        if (!publicKeySent) {
+            sendOwnPublicKey();
+        }
+        // 5. Receive all public keys from the server
+        receiveAllPublicKeys();
+        return true;
+    }
+
+    private boolean performKeyExchange(boolean allowFullHandshake) throws Exception {
+        // Open with our ticket so the server can skip making a key pair; if it refuses
+        // the ticket we open again for the full handshake
+        SessionTicket ticket = sessionTicket;
+        if (ticket != null && !ticket.isExpired() && resumeSession(ticket)) {
+            return true;
+        }
+        if (!allowFullHandshake) {
+            return false;
+        }
+
+        // Agree on the session key with X25519 unless the RSA handshake is requested;
+        // opening with our hello spares the server making an RSA key pair
+        String handshakeMode = System.getProperty("chat.handshake", "x25519");
+        boolean pipelined = "pipelined".equalsIgnoreCase(handshakeMode) && !pipelinedRefused;
+        if (!pipelined && !"rsa".equalsIgnoreCase(handshakeMode)) {
+            X25519Handshake handshake = new X25519Handshake();
+            out.writeFrame(handshake.getHello(AESUtil.offeredCapabilities()));
+            KeyAgreementHello serverHello = (KeyAgreementHello) in.readFrame();
+            aesKey = handshake.deriveSessionKey(serverHello, true);
+            compressor = AESUtil.compressorFor(serverHello.getCapabilities());
+            System.out.println("Key exchange completed successfully (X25519)");
+            return true;
+        }
+
         // Receive server's public key
-        PublicKey serverPublicKey = (PublicKey) in.readObject();
+        out.writeFrame(new KeyRequest());
+        ServerKey serverKey = (ServerKey) in.readFrame();
+        PublicKey serverPublicKey = serverKey.getPublicKey();
         System.out.println("Received server's public key");
 
+        // A pipelined login sends everything up to the chat in the same round trip,
+        // sealed to and bound to the server key
+        if (pipelined) {
+            return sendPipelinedLogin(serverKey);
+        }
+
         // Generate AES key
         KeyGenerator keyGen = KeyGenerator.getInstance("AES");
         keyGen.init(256);
@@ -104,12 +220,111 @@ public class ClientConnection {
         byte[] encryptedAESKey = rsaCipher.doFinal(aesKey.getEncoded());
 
         // Send encrypted AES key to server
-        out.writeObject(encryptedAESKey);
+        out.writeFrame(encryptedAESKey);
         System.out.println("Key exchange completed successfully");
 
         return true;
     }
 
+    /**
+     * Ask for the credentials up front and send them with our key share,
+     * signed proof and E2EE public key in a single frame
+     */
+    private boolean sendPipelinedLogin(ServerKey serverKey) throws Exception {
+        Scanner scanner = new Scanner(System.in);
+        boolean registration;
+        String inputUsername;
+        String password;
+        while (true) {
+            System.out.println("\n=== User Authentication ===");
+            System.out.println("1. Login with existing account");
+            System.out.println("2. Register new account");
+            System.out.print("Choose option (1 or 2): ");
+            String choice = scanner.nextLine().trim();
+            if (!"1".equals(choice) && !"2".equals(choice)) {
+                System.out.println("Invalid choice. Please enter 1 or 2.");
+                continue;
+            }
+            registration = "2".equals(choice);
+            System.out.print(registration ? "Choose username: " : "Username: ");
+            inputUsername = scanner.nextLine().trim();
+            System.out.print(registration ? "Choose password: " : "Password: ");
+            password = readPassword();
+            if (registration) {
+                System.out.print("Confirm password: ");
+                if (!password.equals(readPassword())) {
+                    System.out.println("Passwords do not match!");
+                    continue;
+                }
+            }
+            break;
+        }
+
+        PublicKey clientPublicKey = CryptoUtil.loadPublicKey("client/public_key.der");
+        PrivateKey clientPrivateKey = CryptoUtil.loadPrivateKey("client/private_key.der");
+        X25519Handshake handshake = new X25519Handshake();
+        out.writeFrame(PipelinedHandshake.createLogin(handshake, AESUtil.offeredCapabilities(), serverKey,
+                new KeyPair(clientPublicKey, clientPrivateKey), clientPublicKey, registration, inputUsername, password));
+
+        KeyAgreementHello serverHello;
+        try {
+            serverHello = (KeyAgreementHello) in.readFrame();
+        } catch (EOFException e) {
+            System.out.println("Server does not support pipelined login");
+            pipelinedRefused = true;
+            return false;
+        }
+        aesKey = handshake.deriveSessionKey(serverHello, true);
+        compressor = AESUtil.compressorFor(serverHello.getCapabilities());
+        pipelinedUsername = inputUsername;
+        System.out.println("Key exchange completed successfully (pipelined)");
+        return true;
+    }
+
+    private boolean resumeSession(SessionTicket ticket) throws Exception {
+        byte[] nonce = new byte[32];
+        new SecureRandom().nextBytes(nonce);
+        out.writeFrame(new ResumeRequest(ticket.getTicket(), nonce, AESUtil.offeredCapabilities()));
+
+        ResumeResponse response = (ResumeResponse) in.readFrame();
+        if (!response.isAccepted()) {
+            System.out.println("Session ticket refused, performing full handshake");
+            sessionTicket = null;
+            return false;
+        }
+        aesKey = SessionTicket.deriveSessionKey(ticket.getSecret(), nonce, response.getNonce());
+        compressor = AESUtil.compressorFor(response.getCapabilities());
+        resumed = true;
+        System.out.println("Session resumed");
+        return true;
+    }
+
+    /**
+     * Re-establish a dropped connection using the resumption ticket
+     */
+    private boolean reconnect() {
+        for (int attempt = 1; attempt <= MAX_RECONNECT_ATTEMPTS; attempt++) {
+            SessionTicket ticket = sessionTicket;
+            if (ticket == null || ticket.isExpired()) {
+                return false;
+            }
+            closeSocket();
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS * attempt);
+                if (openSession(false)) {
+                    System.out.println("Reconnected as: " + username);
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                System.err.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
     private boolean performRSAAuthentication() throws Exception {
         try {
             // Load client's keys (optional - create dummy keys if not available)
@@ -130,10 +345,10 @@ public class ClientConnection {
             }
 
             // Send public key to server
-            out.writeObject(clientPublicKey);
+            out.writeFrame(clientPublicKey);
 
             // Receive challenge from server
-            byte[] challenge = (byte[]) in.readObject();
+            byte[] challenge = (byte[]) in.readFrame();
 
             // Sign challenge
             Signature signature = Signature.getInstance("SHA256withRSA");
@@ -142,7 +357,7 @@ public class ClientConnection {
             byte[] signedChallenge = signature.sign();
 
             // Send signature to server
-            out.writeObject(signedChallenge);
+            out.writeFrame(signedChallenge);
             System.out.println("RSA authentication completed");
 
             return true;
@@ -388,10 +603,16 @@ public class ClientConnection {
     }
 
     private void listenForMessages() {
-        try {
-            while (isConnected) {
+        while (isConnected) {
+            try {
                 Object receivedData = decryptMessage();
 
+                // Keep the newest resumption ticket for reconnecting
+                if (receivedData instanceof SessionTicket) {
+                    sessionTicket = (SessionTicket) receivedData;
+                    continue;
+                }
+
                 // Handle public key map update (single or all)
                 if (receivedData instanceof Map) {
                     Map<?, ?> map = (Map<?, ?>) receivedData;
@@ -422,11 +643,13 @@ public class ClientConnection {
                     String response = (String) receivedData;
                     handleServerResponse(response);
                 }
-            }
-        } catch (Exception e) {
-            if (isConnected) {
-                System.err.println("Connection lost: " + e.getMessage());
-                isConnected = false;
+            } catch (Exception e) {
+                if (isConnected) {
+                    System.err.println("Connection lost: " + e.getMessage());
+                    if (!reconnect()) {
+                        isConnected = false;
+                    }
+                }
             }
         }
     }
@@ -459,13 +682,29 @@ public class ClientConnection {
     }
 
     private void sendEncryptedMessage(Object message) throws Exception {
-        byte[] encrypted = AESUtil.encryptObject((Serializable) message, aesKey);
-        out.writeObject(encrypted);
+        if (batcher != null) {
+            if (message instanceof Message) {
+                batcher.add((Message) message);
+                return;
+            }
+            // Anything else waits for the chat messages sent before it
+            batcher.flush();
+        }
+        writeEncrypted(message);
+    }
+
+    /**
+     * Encrypt and write one frame; synchronized because the batcher's timer
+     * thread writes too, and the cipher's nonce counter must follow write order
+     */
+    private synchronized void writeEncrypted(Object message) throws Exception {
+        byte[] encrypted = AESUtil.encryptObject((Serializable) message, crypto, compressor);
+        out.writeFrame(encrypted);
     }
 
     private Object decryptMessage() throws Exception {
-        byte[] encrypted = (byte[]) in.readObject();
-        return AESUtil.decryptObject(encrypted, aesKey);
+        byte[] encrypted = (byte[]) in.readFrame();
+        return AESUtil.decryptObject(encrypted, crypto);
     }
 
     private void sendOwnPublicKey() throws Exception {
@@ -490,6 +729,13 @@ public class ClientConnection {
 
     private void disconnect() {
         isConnected = false;
+        if (batcher != null) {
+            batcher.close();
+        }
+        closeSocket();
+    }
+
+    private void closeSocket() {
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
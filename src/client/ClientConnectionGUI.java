@@ -7,6 +7,14 @@ import javax.crypto.SecretKey;
 import javax.crypto.KeyGenerator;
 import javax.crypto.Cipher;
 import common.Message;
+import common.FrameInputStream;
+import common.FrameOutputStream;
+import common.SessionCipher;
+import common.PayloadCompressor;
+import common.KeyAgreementHello;
+import common.KeyRequest;
+import common.ServerKey;
+import common.X25519Handshake;
 import client.AESUtil;
 import javafx.application.Platform;
 
@@ -14,9 +22,12 @@ public class ClientConnectionGUI {
     private String serverAddress;
     private int serverPort;
     private Socket socket;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private FrameInputStream in;
+    private FrameOutputStream out;
     private SecretKey aesKey;
+    private SessionCipher crypto;
+    // Set when the server accepted compression for this connection
+    private PayloadCompressor compressor;
     private String username;
     private boolean isConnected = false;
     private ChatClientGUI gui;
@@ -30,13 +41,14 @@ public class ClientConnectionGUI {
     public void connect() throws Exception {
         socket = new Socket(serverAddress, serverPort);
         
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
+        out = new FrameOutputStream(socket.getOutputStream());
+        in = new FrameInputStream(socket.getInputStream());
 
         // 1. Perform key exchange
         if (!performKeyExchange()) {
             throw new Exception("Key exchange failed!");
         }
+        crypto = new SessionCipher(aesKey, true);
 
         // 2. Perform RSA authentication (optional)
         if (!performRSAAuthentication()) {
@@ -55,8 +67,20 @@ public class ClientConnectionGUI {
     }
 
     private boolean performKeyExchange() throws Exception {
-        // Receive server's public key
-        PublicKey serverPublicKey = (PublicKey) in.readObject();
+        // Agree on the session key with X25519 unless the RSA handshake is requested;
+        // opening with our hello spares the server making an RSA key pair
+        if (!"rsa".equalsIgnoreCase(System.getProperty("chat.handshake", "x25519"))) {
+            X25519Handshake handshake = new X25519Handshake();
+            out.writeFrame(handshake.getHello(AESUtil.offeredCapabilities()));
+            KeyAgreementHello serverHello = (KeyAgreementHello) in.readFrame();
+            aesKey = handshake.deriveSessionKey(serverHello, true);
+            compressor = AESUtil.compressorFor(serverHello.getCapabilities());
+            return true;
+        }
+
+        // Ask for and receive server's public key
+        out.writeFrame(new KeyRequest());
+        PublicKey serverPublicKey = ((ServerKey) in.readFrame()).getPublicKey();
 
         // Generate AES key
         KeyGenerator keyGen = KeyGenerator.getInstance("AES");
@@ -69,7 +93,7 @@ public class ClientConnectionGUI {
         byte[] encryptedAESKey = rsaCipher.doFinal(aesKey.getEncoded());
 
         // Send encrypted AES key to server
-        out.writeObject(encryptedAESKey);
+        out.writeFrame(encryptedAESKey);
 
         return true;
     }
@@ -93,10 +117,10 @@ public class ClientConnectionGUI {
             }
 
             // Send public key to server
-            out.writeObject(clientPublicKey);
+            out.writeFrame(clientPublicKey);
 
             // Receive challenge from server
-            byte[] challenge = (byte[]) in.readObject();
+            byte[] challenge = (byte[]) in.readFrame();
 
             // Sign challenge
             Signature signature = Signature.getInstance("SHA256withRSA");
@@ -105,7 +129,7 @@ public class ClientConnectionGUI {
             byte[] signedChallenge = signature.sign();
 
             // Send signature to server
-            out.writeObject(signedChallenge);
+            out.writeFrame(signedChallenge);
 
             return true;
         } catch (Exception e) {
@@ -270,13 +294,13 @@ public class ClientConnectionGUI {
     }
 
     private void sendEncryptedMessage(Object message) throws Exception {
-        byte[] encrypted = AESUtil.encryptObject((Serializable) message, aesKey);
-        out.writeObject(encrypted);
+        byte[] encrypted = AESUtil.encryptObject((Serializable) message, crypto, compressor);
+        out.writeFrame(encrypted);
     }
 
     private Object decryptMessage() throws Exception {
-        byte[] encrypted = (byte[]) in.readObject();
-        return AESUtil.decryptObject(encrypted, aesKey);
+        byte[] encrypted = (byte[]) in.readFrame();
+        return AESUtil.decryptObject(encrypted, crypto);
     }
 
     public void disconnect() {
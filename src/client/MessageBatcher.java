@@ -0,0 +1,93 @@
+package client;
+
+import java.util.*;
+import java.util.concurrent.*;
+import common.Message;
+import common.MessageBatch;
+
+/**
+ * Collects outgoing chat messages and hands them to the connection as one
+ * {@link MessageBatch}, so a burst from a bot costs one encryption and one
+ * socket write instead of one per message. A batch goes out once it holds
+ * maxMessages messages or about maxBytes of text, or windowMillis after its
+ * first message, whichever comes first.
+ */
+public class MessageBatcher {
+    /**
+     * Where finished batches go; a single pending message is sent on its own
+     */
+    public interface Sender {
+        void send(Object frame) throws Exception;
+    }
+
+    private final Sender sender;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long windowMillis;
+    private final ScheduledExecutorService timer;
+    private final List<Message> pending = new ArrayList<>();
+    private int pendingBytes = 0;
+    private ScheduledFuture<?> scheduledFlush;
+
+    public MessageBatcher(Sender sender, int maxMessages, int maxBytes, long windowMillis) {
+        this.sender = sender;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.windowMillis = windowMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MessageBatcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public synchronized void add(Message message) throws Exception {
+        pending.add(message);
+        pendingBytes += estimateSize(message);
+        if (pending.size() >= maxMessages || pendingBytes >= maxBytes) {
+            flush();
+        } else if (pending.size() == 1) {
+            scheduledFlush = timer.schedule(this::flushOnTimer, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send whatever is pending now; also called before any other frame so
+     * messages never overtake a batch still waiting
+     */
+    public synchronized void flush() throws Exception {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        Object frame = pending.size() == 1 ? pending.get(0) : new MessageBatch(pending);
+        pending.clear();
+        pendingBytes = 0;
+        sender.send(frame);
+    }
+
+    private void flushOnTimer() {
+        try {
+            flush();
+        } catch (Exception e) {
+            // The listener thread notices the broken connection
+            System.err.println("Failed to send message batch: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private static int estimateSize(Message message) {
+        // Close enough for a flush threshold: text length plus field and timestamp overhead
+        int size = 24;
+        size += message.getFrom() != null ? message.getFrom().length() : 0;
+        size += message.getTo() != null ? message.getTo().length() : 0;
+        size += message.getContent() != null ? message.getContent().length() : 0;
+        return size;
+    }
+}
@@ -0,0 +1,368 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Writes log lines from any thread to one file through a single open
+ * channel. Callers only put the line in a bounded lock-free ring; a
+ * background thread wakes every flush interval (or sooner, once the ring
+ * is half full), drains it and writes the lines in one go.
+ *
+ * When the ring is full a caller either waits for room or drops the line;
+ * dropped lines are counted and reported in the log. The file can be
+ * synced after every batch, at most once per interval, or never, and is
+ * rotated by size and/or age to name.1, name.2, ... keeping a set number.
+ *
+ * A writer being replaced can be closed into its successor, which then
+ * takes any line that reaches the old one late.
+ */
+public class AsyncLogWriter {
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final Path file;
+    private final Ring ring;
+    private final boolean dropWhenFull;
+    private final long flushNanos;
+    private final long fsyncNanos;
+    private final long rotateBytes;
+    private final long rotateNanos;
+    private final int keepFiles;
+    private final Thread drainer;
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean running = true;
+    // Set by close once the drainer has stopped; guarded by closeLock
+    private final ReentrantLock closeLock = new ReentrantLock();
+    private final Condition closedCondition = closeLock.newCondition();
+    private boolean closed;
+    private AsyncLogWriter successor;
+
+    // Drainer thread only
+    private FileChannel channel;
+    private long fileBytes;
+    private long fileOpened;
+    private long lastSync;
+    private boolean unsynced;
+    private long droppedReported;
+
+    /**
+     * @param bufferSize   lines the ring holds, rounded up to a power of two
+     * @param dropWhenFull drop lines when the ring is full instead of waiting
+     * @param flushMillis  longest a line waits in the ring
+     * @param fsyncMillis  sync after every write if 0, at most this often if positive, never if negative
+     * @param rotateBytes  rotate once the file reaches this size; 0 for no limit
+     * @param rotateMillis rotate once the file is this old; 0 for no limit
+     * @param keepFiles    rotated files to keep
+     */
+    public static AsyncLogWriter start(String file, int bufferSize, boolean dropWhenFull, long flushMillis,
+                                       long fsyncMillis, long rotateBytes, long rotateMillis, int keepFiles) {
+        AsyncLogWriter writer = new AsyncLogWriter(file, bufferSize, dropWhenFull, flushMillis, fsyncMillis,
+                rotateBytes, rotateMillis, keepFiles);
+        writer.drainer.start();
+        return writer;
+    }
+
+    private AsyncLogWriter(String file, int bufferSize, boolean dropWhenFull, long flushMillis, long fsyncMillis,
+                           long rotateBytes, long rotateMillis, int keepFiles) {
+        this.file = Paths.get(file);
+        this.ring = new Ring(Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1);
+        this.dropWhenFull = dropWhenFull;
+        this.flushNanos = Math.max(1, flushMillis) * 1_000_000;
+        this.fsyncNanos = fsyncMillis * 1_000_000;
+        this.rotateBytes = rotateBytes;
+        this.rotateNanos = rotateMillis * 1_000_000;
+        this.keepFiles = Math.max(1, keepFiles);
+        this.drainer = new Thread(this::drainLoop, "LogWriter");
+        drainer.setDaemon(true);
+    }
+
+    public void write(String line) {
+        if (!running) {
+            writeAfterClose(line);
+            return;
+        }
+        if (ring.offer(line)) {
+            if (!running) {
+                // Closed while we were offering; the drainer may already be gone
+                writeAfterClose(null);
+            } else if (ring.size() > ring.capacity() / 2) {
+                LockSupport.unpark(drainer);
+            }
+            return;
+        }
+        if (dropWhenFull) {
+            dropped.increment();
+            return;
+        }
+        while (!ring.offer(line)) {
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(50_000);
+            if (!running) {
+                writeAfterClose(line);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write out whatever is queued, sync and stop. Lines logged afterwards are dropped.
+     */
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Write out whatever is queued, sync and stop. Lines that reach this
+     * writer afterwards, or that the drainer missed, go to the successor.
+     */
+    public void close(AsyncLogWriter successor) {
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeLock.lock();
+        try {
+            this.successor = successor;
+            closed = true;
+            handOffQueued();
+            closedCondition.signalAll();
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    /**
+     * A line, or with null only what is queued, for a writer that is closing.
+     * Until close has finished, a line goes in the ring for close to hand
+     * off; if the ring is full it is dropped, or waits for close when lines
+     * are not to be dropped.
+     */
+    private void writeAfterClose(String line) {
+        closeLock.lock();
+        try {
+            if (!closed) {
+                if (line == null || ring.offer(line)) {
+                    return;
+                }
+                if (dropWhenFull) {
+                    dropped.increment();
+                    return;
+                }
+                while (!closed) {
+                    closedCondition.awaitUninterruptibly();
+                }
+            }
+            handOffQueued();
+            if (line != null) {
+                if (successor != null) {
+                    successor.write(line);
+                } else {
+                    dropped.increment();
+                }
+            }
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    // Called holding closeLock; the ring may only have one consumer, so
+    // a drainer that outlived close's wait keeps what is queued
+    private void handOffQueued() {
+        if (drainer.isAlive()) {
+            return;
+        }
+        String line;
+        while ((line = ring.poll()) != null) {
+            if (successor != null) {
+                successor.write(line);
+            } else {
+                dropped.increment();
+            }
+        }
+    }
+
+    public long getDropped() { return dropped.sum(); }
+    public long getWritten() { return written.get(); }
+
+    private void drainLoop() {
+        ByteBuffer batch = ByteBuffer.allocate(MAX_BATCH_BYTES);
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            boolean stopping = !running;
+            int lines = 0;
+            String line;
+            text.setLength(0);
+            long lost = dropped.sum() - droppedReported;
+            if (lost > 0) {
+                text.append("[").append(lost).append(" log entries dropped]\n");
+                droppedReported += lost;
+            }
+            while (text.length() < MAX_BATCH_BYTES && (line = ring.poll()) != null) {
+                text.append(line);
+                lines++;
+            }
+            if (text.length() > 0) {
+                writeBatch(text, batch);
+                written.addAndGet(lines);
+            } else if (stopping) {
+                break;
+            } else {
+                syncIfDue(System.nanoTime());
+                LockSupport.parkNanos(this, flushNanos);
+            }
+        }
+        closeFile();
+    }
+
+    private void writeBatch(CharSequence text, ByteBuffer batch) {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            long now = System.nanoTime();
+            if (channel == null) {
+                openFile(now);
+            } else if ((rotateBytes > 0 && fileBytes + bytes.length > rotateBytes && fileBytes > 0)
+                    || (rotateNanos > 0 && now - fileOpened >= rotateNanos)) {
+                rotate(now);
+            }
+            ByteBuffer out = bytes.length <= batch.capacity() ? batch.clear().put(bytes).flip() : ByteBuffer.wrap(bytes);
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            fileBytes += bytes.length;
+            unsynced = true;
+            syncIfDue(now);
+        } catch (IOException e) {
+            // Nowhere else to report it; keep going with the next batch
+            System.err.println("Log write failed: " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    private void syncIfDue(long now) {
+        if (!unsynced || fsyncNanos < 0 || channel == null || now - lastSync < fsyncNanos) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Log sync failed: " + e.getMessage());
+        }
+        lastSync = now;
+        unsynced = false;
+    }
+
+    private void openFile(long now) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        fileOpened = now;
+    }
+
+    /**
+     * name.(keep-1) becomes name.keep, and so on down to name becoming name.1
+     */
+    private void rotate(long now) throws IOException {
+        if (fsyncNanos >= 0 && unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+        channel.close();
+        channel = null;
+        String name = file.toString();
+        Files.deleteIfExists(Paths.get(name + "." + keepFiles));
+        for (int i = keepFiles - 1; i >= 1; i--) {
+            Path older = Paths.get(name + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, Paths.get(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, Paths.get(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        openFile(now);
+    }
+
+    private void closeFile() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (fsyncNanos >= 0 && unsynced) {
+                channel.force(false);
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Log close failed: " + e.getMessage());
+        }
+        channel = null;
+        unsynced = false;
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring. Each slot carries a
+     * sequence number: a producer claims the slot whose sequence equals the
+     * tail, fills it and advances the sequence; the consumer reads a slot
+     * once its sequence says it is filled and hands it back a lap later.
+     */
+    static final class Ring {
+        private final String[] entries;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private final int mask;
+        private volatile long head; // Written by the consumer only
+
+        Ring(int capacity) {
+            entries = new String[capacity];
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        boolean offer(String entry) {
+            while (true) {
+                long position = tail.get();
+                int index = (int) position & mask;
+                long sequence = sequences.get(index);
+                if (sequence == position) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        entries[index] = entry;
+                        sequences.lazySet(index, position + 1);
+                        return true;
+                    }
+                } else if (sequence < position) {
+                    return false; // Still holds an entry from the previous lap
+                }
+            }
+        }
+
+        String poll() {
+            long position = head;
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                return null;
+            }
+            String entry = entries[index];
+            entries[index] = null;
+            sequences.lazySet(index, position + mask + 1);
+            head = position + 1;
+            return entry;
+        }
+
+        int size() {
+            return (int) Math.max(0, tail.get() - head);
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package common;
+
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * One account event in the {@link AuditLog}
+ */
+public class AuditEvent {
+    public enum Type {
+        LOGIN_OK, LOGIN_FAILED, REGISTER, REGISTER_FAILED, PASSWORD_CHANGE, PASSWORD_CHANGE_FAILED, DEACTIVATE;
+
+        private static final Type[] VALUES = values();
+
+        static Type of(int code) {
+            return code >= 0 && code < VALUES.length ? VALUES[code] : null;
+        }
+    }
+
+    private final long timestamp;
+    private final Type type;
+    private final String username;
+    private final String detail;
+
+    public AuditEvent(long timestamp, Type type, String username, String detail) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.username = username;
+        this.detail = detail;
+    }
+
+    public long getTimestamp() { return timestamp; }
+    public Type getType() { return type; }
+    public String getUsername() { return username; }
+    public String getDetail() { return detail; }
+
+    /**
+     * Whether the event is for the user (any user if null) and of one of
+     * the types (any type if null or empty)
+     */
+    public boolean matches(String user, Set<Type> types) {
+        return (user == null || user.equalsIgnoreCase(username))
+                && (types == null || types.isEmpty() || types.contains(type));
+    }
+
+    @Override
+    public String toString() {
+        return new Date(timestamp) + " " + type + " " + username + (detail.isEmpty() ? "" : " (" + detail + ")");
+    }
+}
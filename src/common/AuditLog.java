@@ -0,0 +1,341 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Typed account events in a directory of binary segments, written by the
+ * server and queried by the admin tool.
+ *
+ * A segment is named after the time of its first event and holds records
+ * of [length][time][type][username][detail][length]; the trailing length
+ * lets a reader walk backwards from the end. Next to each segment is a
+ * sparse index of (time, offset) pairs, one per 4 KiB of records, so a
+ * time-range query starts reading near the first match instead of at the
+ * start. Queries map only the segments they need and touch only the pages
+ * they read; nothing loads a whole log.
+ *
+ * The writer buffers records and writes them out once a second or when
+ * the buffer fills. A record cut short by a crash is ignored by readers.
+ */
+public class AuditLog {
+    public static final String DEFAULT_DIRECTORY = "audit";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    // Length, time, type, the two string lengths and the trailing length
+    private static final int RECORD_OVERHEAD = 4 + 8 + 1 + 2 + 2 + 4;
+
+    private static volatile AuditLog log;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer records = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer index = ByteBuffer.allocate(BUFFER_SIZE / INDEX_INTERVAL * INDEX_ENTRY_SIZE * 2);
+    private final ScheduledExecutorService flusher;
+    private FileChannel segment;
+    private FileChannel segmentIndex;
+    private long segmentStart;
+    private long segmentSize; // Including what is still buffered
+    private long lastIndexed = -INDEX_INTERVAL;
+    private long lastTimestamp;
+
+    private AuditLog(Path directory, long segmentBytes, long flushMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AuditFlusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushQuietly, "AuditFlushOnExit"));
+    }
+
+    /**
+     * Start recording events; until this is called, {@link #record} does
+     * nothing. Each run starts a new segment.
+     */
+    public static void configure(String directory, long segmentBytes, long flushMillis) throws IOException {
+        log = new AuditLog(Paths.get(directory), segmentBytes, flushMillis);
+    }
+
+    public static void record(AuditEvent.Type type, String username, String detail) {
+        AuditLog current = log;
+        if (current != null) {
+            current.append(type, username != null ? username : "", detail != null ? detail : "");
+        }
+    }
+
+    private void append(AuditEvent.Type type, String username, String detail) {
+        byte[] user = truncate(username);
+        byte[] text = truncate(detail);
+        int length = RECORD_OVERHEAD + user.length + text.length;
+        lock.lock();
+        try {
+            // Keep times in order within the log, so the index can be searched
+            long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+            lastTimestamp = timestamp;
+            if (segment == null || segmentSize + length > segmentBytes) {
+                startSegment(timestamp);
+            }
+            if (records.remaining() < length || index.remaining() < INDEX_ENTRY_SIZE) {
+                flush();
+            }
+            if (segmentSize - lastIndexed >= INDEX_INTERVAL) {
+                index.putLong(timestamp).putLong(segmentSize);
+                lastIndexed = segmentSize;
+            }
+            records.putInt(length).putLong(timestamp).put((byte) type.ordinal())
+                    .putShort((short) user.length).put(user)
+                    .putShort((short) text.length).put(text)
+                    .putInt(length);
+            segmentSize += length;
+        } catch (IOException e) {
+            LoggerUtil.log("Error writing audit log: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static byte[] truncate(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= 1024 ? bytes : Arrays.copyOf(bytes, 1024);
+    }
+
+    private void startSegment(long timestamp) throws IOException {
+        if (segment != null) {
+            flush();
+            segment.close();
+            segmentIndex.close();
+        }
+        // Names must sort in time order and never collide, also with an earlier run's
+        long start = Math.max(timestamp, segmentStart + 1);
+        while (Files.exists(directory.resolve(segmentName(start) + SEGMENT_SUFFIX))) {
+            start++;
+        }
+        segment = FileChannel.open(directory.resolve(segmentName(start) + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentIndex = FileChannel.open(directory.resolve(segmentName(start) + INDEX_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentStart = start;
+        segmentSize = 0;
+        lastIndexed = -INDEX_INTERVAL;
+    }
+
+    /**
+     * Records first, then the index entries that point into them
+     */
+    private void flush() throws IOException {
+        if (segment == null) {
+            return;
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            segment.write(records);
+        }
+        records.clear();
+        index.flip();
+        while (index.hasRemaining()) {
+            segmentIndex.write(index);
+        }
+        index.clear();
+    }
+
+    private void flushQuietly() {
+        lock.lock();
+        try {
+            flush();
+        } catch (IOException e) {
+            LoggerUtil.log("Error writing audit log: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String segmentName(long start) {
+        return String.format("%013d", start);
+    }
+
+    // Queries
+
+    /**
+     * The last count matching events, oldest first. Reads segments from
+     * the newest back, and each one from its end, until enough are found.
+     */
+    public static List<AuditEvent> tail(String directory, int count, String username, Set<AuditEvent.Type> types)
+            throws IOException {
+        LinkedList<AuditEvent> found = new LinkedList<>();
+        List<Path> segments = segments(Paths.get(directory));
+        for (int i = segments.size() - 1; i >= 0 && found.size() < count; i--) {
+            MappedByteBuffer data = map(segments.get(i));
+            int position = validEnd(data, indexOf(segments.get(i)));
+            while (position > 0 && found.size() < count) {
+                int length = data.getInt(position - 4);
+                position -= length;
+                AuditEvent event = decode(data, position);
+                if (event.matches(username, types)) {
+                    found.addFirst(event);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Matching events from from to to (inclusive, in milliseconds), oldest
+     * first, at most limit of them
+     */
+    public static List<AuditEvent> range(String directory, long from, long to, String username,
+                                         Set<AuditEvent.Type> types, int limit) throws IOException {
+        List<AuditEvent> found = new ArrayList<>();
+        List<Path> segments = segments(Paths.get(directory));
+        for (int i = 0; i < segments.size() && found.size() < limit; i++) {
+            long start = startOf(segments.get(i));
+            if (start > to) {
+                break;
+            }
+            // A segment ends where the next begins, so it is skipped unopened if that is before the range
+            if (i + 1 < segments.size() && startOf(segments.get(i + 1)) < from) {
+                continue;
+            }
+            MappedByteBuffer data = map(segments.get(i));
+            long[] entries = readIndex(indexOf(segments.get(i)));
+            int end = validEnd(data, entries);
+            int position = (int) seek(entries, from);
+            while (position < end && found.size() < limit) {
+                AuditEvent event = decode(data, position);
+                position += data.getInt(position);
+                if (event.getTimestamp() > to) {
+                    return found;
+                }
+                if (event.getTimestamp() >= from && event.matches(username, types)) {
+                    found.add(event);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Offset of the last indexed record at or before the time; records in
+     * between are then scanned
+     */
+    private static long seek(long[] entries, long timestamp) {
+        int low = 0;
+        int high = entries.length / 2 - 1;
+        long offset = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid * 2] < timestamp) {
+                offset = entries[mid * 2 + 1];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * End of the last complete record: scans forward from the last index
+     * entry that points inside the data, so a torn tail is left out
+     */
+    private static int validEnd(MappedByteBuffer data, long[] entries) {
+        int position = 0;
+        for (int i = entries.length / 2 - 1; i >= 0; i--) {
+            if (entries[i * 2 + 1] < data.limit()) {
+                position = (int) entries[i * 2 + 1];
+                break;
+            }
+        }
+        while (position + 4 <= data.limit()) {
+            int length = data.getInt(position);
+            if (length < RECORD_OVERHEAD || length > MAX_RECORD_SIZE || position + length > data.limit()
+                    || data.getInt(position + length - 4) != length) {
+                break;
+            }
+            position += length;
+        }
+        return position;
+    }
+
+    private static int validEnd(MappedByteBuffer data, Path index) throws IOException {
+        return validEnd(data, readIndex(index));
+    }
+
+    private static AuditEvent decode(ByteBuffer data, int position) {
+        long timestamp = data.getLong(position + 4);
+        AuditEvent.Type type = AuditEvent.Type.of(data.get(position + 12));
+        int userLength = data.getShort(position + 13);
+        byte[] user = new byte[userLength];
+        data.get(position + 15, user);
+        int detailLength = data.getShort(position + 15 + userLength);
+        byte[] detail = new byte[detailLength];
+        data.get(position + 17 + userLength, detail);
+        return new AuditEvent(timestamp, type, new String(user, StandardCharsets.UTF_8),
+                new String(detail, StandardCharsets.UTF_8));
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = new ArrayList<>();
+            files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).forEach(segments::add);
+            Collections.sort(segments);
+            return segments;
+        }
+    }
+
+    private static long startOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static Path indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private static MappedByteBuffer map(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Index entries as alternating times and offsets; a partly written last entry is dropped
+     */
+    private static long[] readIndex(Path index) throws IOException {
+        if (!Files.exists(index)) {
+            return new long[0];
+        }
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            int entries = (int) (channel.size() / INDEX_ENTRY_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until full
+            }
+            buffer.flip();
+            long[] values = new long[entries * 2];
+            buffer.asLongBuffer().get(values, 0, buffer.remaining() / 8);
+            return values;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-classed pool of ByteBuffers for the frame hot path. Requests are
+ * rounded up to a power of two between 256 bytes and 64 KB; each class keeps
+ * up to a fixed number of free buffers. Larger requests are allocated
+ * unpooled. Buffers are either all heap or all direct, so channel writes from
+ * a direct pool skip the JDK's temporary copy.
+ *
+ * The counters show how often the pool had to allocate, which should level
+ * off near zero once the server reaches a steady state.
+ */
+public class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 8;
+    private static final int MAX_CLASS_SHIFT = 16;
+
+    private final boolean direct;
+    // One queue per size class, smallest first; empty when pooling is off
+    private final List<BlockingQueue<ByteBuffer>> classes;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+
+    /**
+     * @param buffersPerClass free buffers kept per size class; 0 disables
+     *                        pooling and every acquire allocates
+     */
+    public BufferPool(boolean direct, int buffersPerClass) {
+        this.direct = direct;
+        this.classes = new ArrayList<>(MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1);
+        if (buffersPerClass > 0) {
+            for (int shift = MIN_CLASS_SHIFT; shift <= MAX_CLASS_SHIFT; shift++) {
+                classes.add(new ArrayBlockingQueue<>(buffersPerClass));
+            }
+        }
+    }
+
+    /**
+     * Pool from a --buffer-pool style mode: heap, direct or off
+     */
+    public static BufferPool create(String mode, int buffersPerClass) {
+        switch (mode) {
+            case "direct":
+                return new BufferPool(true, buffersPerClass);
+            case "off":
+                return new BufferPool(false, 0);
+            case "heap":
+                return new BufferPool(false, buffersPerClass);
+            default:
+                throw new IllegalArgumentException("Unknown buffer pool mode: " + mode);
+        }
+    }
+
+    /**
+     * A cleared buffer with at least the requested capacity
+     */
+    public ByteBuffer acquire(int size) {
+        acquired.increment();
+        int index = classIndex(size);
+        if (index < 0) {
+            oversized.increment();
+            return allocate(size);
+        }
+        ByteBuffer buffer = classes.isEmpty() ? null : classes.get(index).poll();
+        if (buffer == null) {
+            return allocate(1 << (index + MIN_CLASS_SHIFT));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer once nothing refers to it any more. Buffers that did
+     * not come from a pool like this one are simply dropped.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct || buffer.isReadOnly()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        int index = classIndex(capacity);
+        if (index < 0 || capacity != 1 << (index + MIN_CLASS_SHIFT) || classes.isEmpty()) {
+            return;
+        }
+        buffer.clear();
+        classes.get(index).offer(buffer);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getAcquired() { return acquired.sum(); }
+    public long getAllocated() { return allocated.sum(); }
+    public long getAllocatedBytes() { return allocatedBytes.sum(); }
+    public long getOversized() { return oversized.sum(); }
+
+    private ByteBuffer allocate(int capacity) {
+        allocated.increment();
+        allocatedBytes.add(capacity);
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int classIndex(int size) {
+        if (size <= 1 << MIN_CLASS_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+}
@@ -0,0 +1,17 @@
+package common;
+
+/**
+ * Optional protocol features, offered by the client in its handshake message
+ * and echoed back by the server with the ones it accepted
+ */
+public final class Capabilities {
+    /** Compress-then-encrypt payloads with Deflate and the built-in chat dictionary */
+    public static final int DEFLATE = 1;
+
+    private Capabilities() {
+    }
+
+    public static boolean has(int capabilities, int capability) {
+        return (capabilities & capability) != 0;
+    }
+}
@@ -0,0 +1,101 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads {@link WireProtocol} frames from a socket through a large buffer, so
+ * a burst of small frames costs one socket read
+ */
+public class FrameInputStream implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int SCRATCH_SIZE = 8192;
+
+    private final DataInputStream in;
+    // Only used to copy into direct buffers
+    private byte[] scratch;
+
+    public FrameInputStream(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FrameInputStream(InputStream in, int bufferSize) {
+        this.in = new DataInputStream(new BufferedInputStream(new CountingInputStream(in), bufferSize));
+    }
+
+    /**
+     * Block until the next frame has arrived and decode it
+     */
+    public Object readFrame() throws IOException {
+        int length = readLength();
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return WireProtocol.decode(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Read the next frame's body into a buffer from the pool without decoding
+     * it; the caller releases the buffer when done
+     */
+    public ByteBuffer readFrame(BufferPool pool) throws IOException {
+        int length = readLength();
+        ByteBuffer frame = pool.acquire(length);
+        try {
+            if (frame.hasArray()) {
+                in.readFully(frame.array(), frame.arrayOffset(), length);
+                frame.limit(length);
+            } else {
+                byte[] chunk = scratch();
+                for (int remaining = length; remaining > 0; ) {
+                    int n = Math.min(remaining, chunk.length);
+                    in.readFully(chunk, 0, n);
+                    frame.put(chunk, 0, n);
+                    remaining -= n;
+                }
+                frame.flip();
+            }
+            return frame;
+        } catch (IOException e) {
+            pool.release(frame);
+            throw e;
+        }
+    }
+
+    private int readLength() throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > WireProtocol.MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    private byte[] scratch() {
+        if (scratch == null) {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+        return scratch;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Counts the reads that reach the socket
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                TransportStats.recordRead(n);
+            }
+            return n;
+        }
+    }
+}
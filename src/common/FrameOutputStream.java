@@ -0,0 +1,103 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes {@link WireProtocol} frames to a socket through a large buffer.
+ * {@link #writeFrame} sends at once; {@link #writeEncodedFrame} only buffers,
+ * so a writer with several frames ready can coalesce them into one socket
+ * write and {@link #flush} when it runs out of work.
+ *
+ * Writes from several threads are serialized with a lock rather than a
+ * monitor, so a virtual thread blocked in a socket write unmounts instead
+ * of pinning its carrier.
+ */
+public class FrameOutputStream implements Closeable, Flushable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int SCRATCH_SIZE = 8192;
+
+    private final OutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Only used to copy out of direct buffers
+    private byte[] scratch;
+
+    public FrameOutputStream(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FrameOutputStream(OutputStream out, int bufferSize) {
+        this.out = new BufferedOutputStream(new CountingOutputStream(out), bufferSize);
+    }
+
+    /**
+     * Encode, write and flush one frame
+     */
+    public void writeFrame(Object value) throws IOException {
+        byte[] frame = WireProtocol.encodeFrame(value);
+        lock.lock();
+        try {
+            out.write(frame);
+            flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Buffer a frame held in a buffer, from its position to its limit. It is
+     * sent when the buffer fills up or on the next flush.
+     */
+    public void writeEncodedFrame(ByteBuffer frame) throws IOException {
+        lock.lock();
+        try {
+            if (frame.hasArray()) {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                frame.position(frame.limit());
+            } else {
+                if (scratch == null) {
+                    scratch = new byte[SCRATCH_SIZE];
+                }
+                while (frame.hasRemaining()) {
+                    int n = Math.min(frame.remaining(), scratch.length);
+                    frame.get(scratch, 0, n);
+                    out.write(scratch, 0, n);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            out.flush();
+            TransportStats.recordFlush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Counts the writes that reach the socket
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            TransportStats.recordWrite(len);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative long values, usually latencies in
+ * nanoseconds, in log-linear buckets as in an HDR histogram: values below
+ * 128 have a bucket each, and every power of two above that is split into
+ * 64 equal buckets, so a bucket is never wider than 1/64 of its values.
+ * Recording is one atomic increment of a bucket plus two striped adders;
+ * no lock is taken and nothing is allocated.
+ *
+ * Values are cumulative since startup. A snapshot reads the buckets one
+ * by one while recording carries on, so its counts can be a few values
+ * apart from each other, which is fine for percentiles.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    // Values above this (about 18 minutes in nanoseconds) go in the last bucket
+    private static final int MAX_BIT_LENGTH = 40;
+    private static final long MAX_VALUE = (1L << MAX_BIT_LENGTH) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_BIT_LENGTH - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.getAndIncrement(indexOf(Math.min(value, MAX_VALUE)));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Record the nanoseconds since a {@link System#nanoTime()} reading
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() { return count.sum(); }
+    public long getSum() { return sum.sum(); }
+    public long getMax() { return max.get(); }
+
+    /**
+     * Values at each of the given quantiles (0 to 1), each within one
+     * bucket width of the exact value; zeros if nothing was recorded
+     */
+    public long[] quantiles(double... quantiles) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long[] values = new long[quantiles.length];
+        if (total == 0) {
+            return values;
+        }
+        for (int q = 0; q < quantiles.length; q++) {
+            long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    values[q] = Math.min(highestValueIn(i), max.get());
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Values with at most 7 significant bits index themselves; above that,
+     * the bit length picks the group of 64 buckets and the next 6 bits below
+     * the top bit pick the bucket within it
+     */
+    static int indexOf(long value) {
+        int bitLength = 64 - Long.numberOfLeadingZeros(value);
+        if (bitLength <= SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int shift = bitLength - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long top = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
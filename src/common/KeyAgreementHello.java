@@ -0,0 +1,32 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * One side's half of an X25519 key agreement: its ephemeral public key
+ * (X.509 encoded) and a random nonce mixed into the derived session key.
+ * A client opens a connection with this to pick the X25519 handshake, or
+ * after a refused ticket; the server answers with its own, without making
+ * or sending an RSA key pair.
+ */
+public class KeyAgreementHello implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] publicKey;
+    private final byte[] nonce;
+    private final int capabilities;
+
+    public KeyAgreementHello(byte[] publicKey, byte[] nonce, int capabilities) {
+        this.publicKey = publicKey;
+        this.nonce = nonce;
+        this.capabilities = capabilities;
+    }
+
+    public byte[] getPublicKey() { return publicKey; }
+    public byte[] getNonce() { return nonce; }
+
+    /**
+     * {@link Capabilities} offered by the client, or accepted by the server
+     */
+    public int getCapabilities() { return capabilities; }
+}
@@ -6,19 +6,26 @@ import java.io.*;
 import java.security.*;
 
 public class KeyExchangeProtocol {
+    private final ServerKeyPairProvider keyPairs;
     private SecretKey aesKey;
 
-    public void performServerHandshake(ObjectInputStream in, ObjectOutputStream out) throws Exception {
-        // Generate RSA key pair
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-        kpg.initialize(2048);
-        KeyPair kp = kpg.generateKeyPair();
+    public KeyExchangeProtocol() {
+        this(ServerKeyPairProvider.ephemeral());
+    }
+
+    public KeyExchangeProtocol(ServerKeyPairProvider keyPairs) {
+        this.keyPairs = keyPairs;
+    }
+
+    public void performServerHandshake(FrameInputStream in, FrameOutputStream out) throws Exception {
+        // Get this connection's RSA key pair
+        KeyPair kp = keyPairs.nextKeyPair();
 
         // Send public key to client
-        out.writeObject(kp.getPublic());
+        out.writeFrame(kp.getPublic());
 
         // Receive AES key encrypted with RSA public key
-        byte[] encryptedAESKey = (byte[]) in.readObject();
+        byte[] encryptedAESKey = (byte[]) in.readFrame();
         Cipher rsaCipher = Cipher.getInstance("RSA");
         rsaCipher.init(Cipher.DECRYPT_MODE, kp.getPrivate());
         byte[] aesKeyBytes = rsaCipher.doFinal(encryptedAESKey);
@@ -2,14 +2,20 @@ package common;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.*;
 import java.security.*;
+import java.security.spec.*;
 
 public class KeyGeneratorUtil {
 
-    public static void generateAndSaveKeyPair(String publicKeyPath, String privateKeyPath) throws NoSuchAlgorithmException, IOException {
+    public static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
         keyGen.initialize(2048); // RSA key size
-        KeyPair keyPair = keyGen.generateKeyPair();
+        return keyGen.generateKeyPair();
+    }
+
+    public static void generateAndSaveKeyPair(String publicKeyPath, String privateKeyPath) throws NoSuchAlgorithmException, IOException {
+        KeyPair keyPair = generateKeyPair();
 
         // Save public key
         try (FileOutputStream fos = new FileOutputStream(publicKeyPath)) {
@@ -24,6 +30,18 @@ public class KeyGeneratorUtil {
         System.out.println("Keys generated and saved.");
     }
 
+    /**
+     * Load a key pair written by generateAndSaveKeyPair
+     */
+    public static KeyPair loadKeyPair(String publicKeyPath, String privateKeyPath) throws IOException, GeneralSecurityException {
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        PublicKey publicKey = keyFactory.generatePublic(
+                new X509EncodedKeySpec(Files.readAllBytes(Paths.get(publicKeyPath))));
+        PrivateKey privateKey = keyFactory.generatePrivate(
+                new PKCS8EncodedKeySpec(Files.readAllBytes(Paths.get(privateKeyPath))));
+        return new KeyPair(publicKey, privateKey);
+    }
+
     public static void main(String[] args) {
         try {
             generateAndSaveKeyPair("keys/server_public.key", "keys/server_private.key");
@@ -0,0 +1,14 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a client as the first frame of a connection to ask for the
+ * server's public key, for the RSA or pipelined handshake. A client holding
+ * a ticket opens with a {@link ResumeRequest} instead, and one using X25519
+ * with its {@link KeyAgreementHello}, so the server only makes a key pair
+ * for connections that use it.
+ */
+public class KeyRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+}
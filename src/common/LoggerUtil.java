@@ -1,16 +1,58 @@
 package common;
 
-import java.io.*;
 import java.time.LocalDateTime;
 
+/**
+ * The authentication log. Lines are handed to an {@link AsyncLogWriter},
+ * so logging never opens the file or waits for a write on the calling
+ * thread. The writer starts with defaults on first use; the server
+ * replaces it with its configured one at startup.
+ */
 public class LoggerUtil {
     private static final String LOG_FILE = "auth_log.txt";
 
+    private static volatile AsyncLogWriter writer;
+
+    static {
+        // Write out whatever is still queued when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            AsyncLogWriter current = writer;
+            if (current != null) {
+                current.close();
+            }
+        }, "LogWriterShutdown"));
+    }
+
     public static void log(String entry) {
-        try (FileWriter fw = new FileWriter(LOG_FILE, true)) {
-            fw.write(LocalDateTime.now() + ": " + entry + "\n");
-        } catch (IOException e) {
-            e.printStackTrace();
+        AsyncLogWriter current = writer;
+        if (current == null) {
+            synchronized (LoggerUtil.class) {
+                if (writer == null) {
+                    writer = AsyncLogWriter.start(LOG_FILE, 8192, false, 50, -1, 0, 0, 5);
+                }
+                current = writer;
+            }
+        }
+        current.write(LocalDateTime.now() + ": " + entry + "\n");
+    }
+
+    /**
+     * Replace the writer; anything queued on the previous one is written first,
+     * and lines still reaching it after the swap go to the new one.
+     * See {@link AsyncLogWriter} for the parameters.
+     */
+    public static void configure(int bufferSize, boolean dropWhenFull, long flushMillis, long fsyncMillis,
+                                 long rotateBytes, long rotateMillis, int keepFiles) {
+        AsyncLogWriter previous;
+        AsyncLogWriter current;
+        synchronized (LoggerUtil.class) {
+            previous = writer;
+            writer = AsyncLogWriter.start(LOG_FILE, bufferSize, dropWhenFull, flushMillis, fsyncMillis,
+                    rotateBytes, rotateMillis, keepFiles);
+            current = writer;
+        }
+        if (previous != null) {
+            previous.close(current);
         }
     }
 }
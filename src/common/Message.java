@@ -16,6 +16,13 @@ public class Message implements Serializable {
         this.timestamp = LocalDateTime.now();
     }
 
+    public Message(String from, String to, String content, LocalDateTime timestamp) {
+        this.from = from;
+        this.to = to;
+        this.content = content;
+        this.timestamp = timestamp;
+    }
+
     public String getFrom() { return from; }
     public String getContent() { return content; }
     public LocalDateTime getTimestamp() { return timestamp; }
@@ -0,0 +1,22 @@
+package common;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Several chat messages sent as one encrypted frame. High-volume senders
+ * batch their messages so a burst costs one encryption and one socket
+ * write; the server routes each message as if it had arrived on its own.
+ */
+public class MessageBatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // A concrete, serializable list; the constructor copies into it
+    private final ArrayList<Message> messages;
+
+    public MessageBatch(List<Message> messages) {
+        this.messages = new ArrayList<>(messages);
+    }
+
+    public List<Message> getMessages() { return Collections.unmodifiableList(messages); }
+}
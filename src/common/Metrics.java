@@ -0,0 +1,122 @@
+package common;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide named metrics: counters, gauges read when rendered, and
+ * histograms of latencies or sizes. Instrumented code looks a metric up
+ * once, into a static field, and from then on only touches its adder or
+ * histogram, so recording never goes through the registry.
+ *
+ * {@link #render()} writes everything in the Prometheus text format, with
+ * latencies converted from nanoseconds to seconds.
+ */
+public class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    private static final class Metric {
+        final String type;
+        final String help;
+        final LongAdder counter;
+        final LongSupplier value;
+        final Histogram histogram;
+        final double scale; // Multiplies histogram values when rendered
+
+        Metric(String type, String help, LongAdder counter, LongSupplier value, Histogram histogram, double scale) {
+            this.type = type;
+            this.help = help;
+            this.counter = counter;
+            this.value = value;
+            this.histogram = histogram;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * A counter; by convention its name ends in _total
+     */
+    public static LongAdder counter(String name, String help) {
+        return metrics.computeIfAbsent(name,
+                n -> new Metric("counter", help, new LongAdder(), null, null, 1)).counter;
+    }
+
+    /**
+     * A counter kept elsewhere, read from the supplier each time the
+     * metrics are rendered; registering the name again replaces the supplier
+     */
+    public static void counter(String name, String help, LongSupplier total) {
+        metrics.put(name, new Metric("counter", help, null, total, null, 1));
+    }
+
+    /**
+     * A current level, read from the supplier each time the metrics are
+     * rendered; registering the name again replaces the supplier
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        metrics.put(name, new Metric("gauge", help, null, value, null, 1));
+    }
+
+    /**
+     * A histogram of nanosecond durations, rendered in seconds
+     */
+    public static Histogram latency(String name, String help) {
+        return metrics.computeIfAbsent(name,
+                n -> new Metric("summary", help, null, null, new Histogram(), 1e-9)).histogram;
+    }
+
+    /**
+     * A histogram of plain values such as sizes or counts
+     */
+    public static Histogram distribution(String name, String help) {
+        return metrics.computeIfAbsent(name,
+                n -> new Metric("summary", help, null, null, new Histogram(), 1)).histogram;
+    }
+
+    public static String render() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Metric metric = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(metric.type).append('\n');
+            if (metric.counter != null) {
+                out.append(name).append(' ').append(metric.counter.sum()).append('\n');
+            } else if (metric.value != null) {
+                out.append(name).append(' ').append(read(metric.value)).append('\n');
+            } else {
+                renderHistogram(out, name, metric.histogram, metric.scale);
+            }
+        }
+        return out.toString();
+    }
+
+    private static void renderHistogram(StringBuilder out, String name, Histogram histogram, double scale) {
+        long[] values = histogram.quantiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+                    .append(format(values[i], scale)).append('\n');
+        }
+        out.append(name).append("_sum ").append(format(histogram.getSum(), scale)).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        // A summary has no max, so it goes out as a gauge of its own
+        out.append("# TYPE ").append(name).append("_max gauge\n");
+        out.append(name).append("_max ").append(format(histogram.getMax(), scale)).append('\n');
+    }
+
+    private static String format(long value, double scale) {
+        return scale == 1 ? Long.toString(value) : String.format(Locale.ROOT, "%.9f", value * scale);
+    }
+
+    private static long read(LongSupplier value) {
+        try {
+            return value.getAsLong();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Password hashing shared by the server and the admin tool. New hashes use
+ * PBKDF2-HMAC-SHA256 with the configured iteration count; each account
+ * records the algorithm and count its hash was made with, so records made
+ * under an older setting still verify and are upgraded on the next login.
+ *
+ * The iteration count is either set directly or calibrated on this machine
+ * to a target number of milliseconds per verification. Running this class
+ * prints the cost of each setting: java common.PasswordHasher [targetMillis]
+ */
+public final class PasswordHasher {
+    /** The original scheme: SHA-256 over the salt and the previous digest */
+    public static final String LEGACY_SHA256 = "SHA-256";
+    public static final String PBKDF2 = "PBKDF2WithHmacSHA256";
+    public static final int LEGACY_ITERATIONS = 10000;
+    public static final int DEFAULT_ITERATIONS = 100_000;
+
+    private static final int MIN_ITERATIONS = 10_000;
+    private static final int KEY_BITS = 256;
+
+    private static volatile int iterations = DEFAULT_ITERATIONS;
+
+    private PasswordHasher() {
+    }
+
+    /**
+     * Set the PBKDF2 iteration count for new hashes; called once at startup
+     */
+    public static void configure(int pbkdf2Iterations) {
+        iterations = Math.max(MIN_ITERATIONS, pbkdf2Iterations);
+    }
+
+    public static int getIterations() {
+        return iterations;
+    }
+
+    public static String hash(String password, String salt, String algorithm, int iterationCount) {
+        try {
+            byte[] saltBytes = Base64.getDecoder().decode(salt);
+            if (PBKDF2.equals(algorithm)) {
+                PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), saltBytes, iterationCount, KEY_BITS);
+                try {
+                    byte[] key = SecretKeyFactory.getInstance(PBKDF2).generateSecret(spec).getEncoded();
+                    return Base64.getEncoder().encodeToString(key);
+                } finally {
+                    spec.clearPassword();
+                }
+            }
+            if (LEGACY_SHA256.equals(algorithm)) {
+                MessageDigest md = MessageDigest.getInstance(LEGACY_SHA256);
+                byte[] hashedPassword = password.getBytes(StandardCharsets.UTF_8);
+                for (int i = 0; i < iterationCount; i++) {
+                    md.reset();
+                    md.update(saltBytes);
+                    hashedPassword = md.digest(hashedPassword);
+                }
+                return Base64.getEncoder().encodeToString(hashedPassword);
+            }
+            throw new IllegalArgumentException("Unknown password hash algorithm: " + algorithm);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new RuntimeException("Error hashing password", e);
+        }
+    }
+
+    /**
+     * Compare a stored hash in constant time
+     */
+    public static boolean matches(String password, String salt, String algorithm, int iterationCount,
+                                  String expectedHash) {
+        String actual = hash(password, salt, algorithm, iterationCount);
+        return MessageDigest.isEqual(actual.getBytes(StandardCharsets.UTF_8),
+                expectedHash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Whether a hash made with these parameters is weaker than (or just
+     * different from) the current setting and should be replaced
+     */
+    public static boolean needsRehash(String algorithm, int iterationCount) {
+        return !PBKDF2.equals(algorithm) || iterationCount != iterations;
+    }
+
+    /**
+     * Iterations that make one PBKDF2 verification take about the given time
+     * on this machine, rounded to a thousand
+     */
+    public static int calibrate(double targetMillis) {
+        String salt = Base64.getEncoder().encodeToString(new byte[32]);
+        int probe = 20_000;
+        // Warm up the JIT before timing
+        long warmUpEnd = System.nanoTime() + 500_000_000L;
+        while (System.nanoTime() < warmUpEnd) {
+            hash("calibration", salt, PBKDF2, probe);
+        }
+        long elapsed = 0;
+        int rounds = 0;
+        while (elapsed < 500_000_000L || rounds < 5) {
+            long start = System.nanoTime();
+            hash("calibration", salt, PBKDF2, probe);
+            elapsed += System.nanoTime() - start;
+            rounds++;
+        }
+        double nanosPerIteration = (double) elapsed / rounds / probe;
+        long calibrated = Math.round(targetMillis * 1_000_000 / nanosPerIteration / 1000) * 1000;
+        return (int) Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, calibrated));
+    }
+
+    /**
+     * Milliseconds per verification with the given parameters, after warm-up
+     */
+    static double measureMillis(String algorithm, int iterationCount) {
+        String salt = Base64.getEncoder().encodeToString(new byte[32]);
+        long warmUpEnd = System.nanoTime() + 500_000_000L;
+        while (System.nanoTime() < warmUpEnd) {
+            hash("Passw0rd!x", salt, algorithm, iterationCount);
+        }
+        int rounds = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            hash("Passw0rd!x", salt, algorithm, iterationCount);
+            rounds++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < 1_000_000_000L);
+        return elapsed / 1e6 / rounds;
+    }
+
+    public static void main(String[] args) {
+        System.out.printf("%-22s %10s %12s %14s%n", "Scheme", "Iterations", "ms/verify", "verifies/core/s");
+        report(LEGACY_SHA256, LEGACY_ITERATIONS);
+        for (int count : new int[] { MIN_ITERATIONS, DEFAULT_ITERATIONS, 300_000, 600_000 }) {
+            report(PBKDF2, count);
+        }
+        if (args.length > 0) {
+            double target = Double.parseDouble(args[0]);
+            int calibrated = calibrate(target);
+            System.out.println("Calibrated for " + target + " ms per verify: " + calibrated + " iterations");
+            report(PBKDF2, calibrated);
+        }
+    }
+
+    private static void report(String algorithm, int iterationCount) {
+        double millis = measureMillis(algorithm, iterationCount);
+        System.out.printf("%-22s %10d %12.2f %14.1f%n", algorithm, iterationCount, millis, 1000 / millis);
+    }
+}
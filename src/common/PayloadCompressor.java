@@ -0,0 +1,194 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
+
+/**
+ * Deflate compression of encoded payloads before they are encrypted. Values
+ * below the size threshold, or that do not shrink, are sent as they are.
+ * Both sides prime Deflate with a preset dictionary of text that recurs in
+ * chat traffic, which is what makes short messages worth compressing.
+ *
+ * A compressed payload is itself a {@link WireProtocol} value, so the
+ * receiver inflates it while decoding without any per-session state.
+ *
+ * Deflaters and Inflaters hold native zlib memory until end() is called,
+ * so they are borrowed from small pools rather than kept per thread, where
+ * every short-lived session thread would leave one behind for the GC.
+ * Ones that do not fit back in a pool are ended at once.
+ */
+public class PayloadCompressor {
+    public static final int DEFAULT_THRESHOLD = 128;
+
+    // Most frequent material last: Deflate finds recent dictionary bytes with shorter distances
+    static final byte[] DICTIONARY = buildDictionary();
+
+    private static final LongAdder compressedPayloads = new LongAdder();
+    private static final LongAdder skippedPayloads = new LongAdder();
+    private static final LongAdder bytesBeforeCompression = new LongAdder();
+    private static final LongAdder bytesAfterCompression = new LongAdder();
+    private static final LongAdder compressNanos = new LongAdder();
+    private static final LongAdder decompressNanos = new LongAdder();
+
+    // Compression never blocks, so a few per core are enough
+    private static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final int level;
+    private final int threshold;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * @param level     Deflate level, 1 (fastest) to 9 (smallest)
+     * @param threshold encoded payloads shorter than this are not compressed
+     */
+    public PayloadCompressor(int level, int threshold) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Deflate level must be 1-9: " + level);
+        }
+        this.level = level;
+        this.threshold = threshold;
+    }
+
+    /**
+     * End the pooled Deflaters, for a compressor that is no longer used
+     */
+    public void close() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The compressed form of an encoded value, or null if it is below the
+     * threshold or compression would not make it smaller
+     */
+    public byte[] compress(byte[] encoded) {
+        if (encoded.length < threshold) {
+            skippedPayloads.increment();
+            return null;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        byte[] output = new byte[encoded.length];
+        int length;
+        boolean finished;
+        try {
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(encoded);
+            deflater.finish();
+
+            // Header plus deflated data must come out smaller than the original
+            ByteBuffer header = ByteBuffer.wrap(output);
+            header.put(WireProtocol.COMPRESSED).putInt(encoded.length);
+            length = header.position();
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            finished = deflater.finished();
+        } finally {
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        compressNanos.add(System.nanoTime() - start);
+        if (!finished) {
+            skippedPayloads.increment();
+            return null;
+        }
+        compressedPayloads.increment();
+        bytesBeforeCompression.add(encoded.length);
+        bytesAfterCompression.add(length);
+        byte[] compressed = new byte[length];
+        System.arraycopy(output, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    /**
+     * Inflate the rest of the buffer, which must expand to exactly the given length
+     */
+    static byte[] inflate(ByteBuffer in, int originalLength) throws IOException {
+        long start = System.nanoTime();
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        byte[] output = new byte[originalLength];
+        try {
+            inflater.reset();
+            inflater.setInput(in);
+            int length = 0;
+            while (length < originalLength) {
+                int n = inflater.inflate(output, length, originalLength - length);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        break;
+                    }
+                }
+                length += n;
+            }
+            if (length == originalLength && !inflater.finished()) {
+                // Output is full; let the inflater reach the end of the stream
+                if (inflater.inflate(new byte[1]) != 0) {
+                    throw new StreamCorruptedException("Compressed payload longer than its length");
+                }
+            }
+            if (length != originalLength || !inflater.finished()) {
+                throw new StreamCorruptedException("Compressed payload does not match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Invalid compressed payload: " + e.getMessage());
+        } finally {
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+            decompressNanos.add(System.nanoTime() - start);
+        }
+        return output;
+    }
+
+    public static long getCompressedPayloads() { return compressedPayloads.sum(); }
+    public static long getSkippedPayloads() { return skippedPayloads.sum(); }
+    public static long getBytesBeforeCompression() { return bytesBeforeCompression.sum(); }
+    public static long getBytesAfterCompression() { return bytesAfterCompression.sum(); }
+
+    public static long getBytesSaved() {
+        return bytesBeforeCompression.sum() - bytesAfterCompression.sum();
+    }
+
+    public static long getCompressMillis() { return compressNanos.sum() / 1_000_000; }
+    public static long getDecompressMillis() { return decompressNanos.sum() / 1_000_000; }
+
+    private static byte[] buildDictionary() {
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        String text = "https:// http:// www. .com .org Exception: at java. Caused by: ERROR WARN INFO DEBUG "
+                + "Thanks thank you sorry please what when where why how can you do we I'm it's that's "
+                + "Hello hello Hi hi everyone, anyone is the and to of in for on with this have not are "
+                + "PASSWORD_CHANGED:Password changed successfully PASSWORD_ERROR:Failed to change password "
+                + "UNKNOWN_COMMAND:Command not recognized USER_INFO:Username: , Created: , Last Login: "
+                + "UTC , Active: Yes Never Sun Mon Tue Wed Thu Fri Sat Jan Feb Mar Apr May Jun Jul Aug "
+                + "Sep Oct Nov Dec' not found or not online. has left the chat. "
+                + "Welcome to the secure chat, ! has joined the chat. SYSTEM";
+        dictionary.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+        // Start of every X.509-encoded 2048-bit RSA public key in a key-map update
+        dictionary.writeBytes(new byte[] {
+                0x30, (byte) 0x82, 0x01, 0x22, 0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86,
+                (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00, 0x03, (byte) 0x82, 0x01, 0x0f, 0x00,
+                0x30, (byte) 0x82, 0x01, 0x0a, 0x02, (byte) 0x82, 0x01, 0x01, 0x00 });
+        dictionary.writeBytes(new byte[] { 0x02, 0x03, 0x01, 0x00, 0x01 });
+        return dictionary.toByteArray();
+    }
+}
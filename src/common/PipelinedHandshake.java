@@ -0,0 +1,140 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * One-round-trip login. The client answers the server's public key with a
+ * {@link PipelinedLogin}; the server replies with its X25519 hello and the
+ * login result (then the key map and welcome) in one flight, instead of the
+ * six round trips of key exchange, challenge, login prompts and key upload.
+ *
+ * The credentials are sealed with AES-GCM under a one-time key wrapped with
+ * the server's RSA key, since the X25519 session key does not exist until the
+ * server answers. The signature covers the server's RSA key, the nonce sent
+ * with it and every other field, standing in for the server's challenge: a
+ * login cannot be replayed to another connection, even one that gets the
+ * same long-term server key.
+ */
+public class PipelinedHandshake {
+    private static final int TAG_BITS = 128;
+    // The sealing key is used exactly once, so a fixed IV is safe
+    private static final byte[] IV = new byte[12];
+
+    /**
+     * Credentials recovered by the server from a verified login
+     */
+    public static class Credentials {
+        private final boolean registration;
+        private final String username;
+        private final String password;
+
+        Credentials(boolean registration, String username, String password) {
+            this.registration = registration;
+            this.username = username;
+            this.password = password;
+        }
+
+        public boolean isRegistration() { return registration; }
+        public String getUsername() { return username; }
+        public String getPassword() { return password; }
+    }
+
+    private PipelinedHandshake() {
+    }
+
+    /**
+     * Build the client's login frame. The session key is later derived from
+     * the server's hello with the same {@link X25519Handshake}.
+     */
+    public static PipelinedLogin createLogin(X25519Handshake handshake, int capabilities, ServerKey serverKey,
+                                             KeyPair proofKeys, PublicKey e2eeKey, boolean registration,
+                                             String username, String password) throws GeneralSecurityException, IOException {
+        KeyAgreementHello hello = handshake.getHello(capabilities);
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        SecretKey sealingKey = keyGen.generateKey();
+        Cipher rsaCipher = Cipher.getInstance("RSA");
+        rsaCipher.init(Cipher.ENCRYPT_MODE, serverKey.getPublicKey());
+        byte[] wrappedKey = rsaCipher.doFinal(sealingKey.getEncoded());
+
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(plaintext);
+        out.writeBoolean(registration);
+        out.writeUTF(username);
+        out.writeUTF(password);
+        Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+        gcm.init(Cipher.ENCRYPT_MODE, sealingKey, new GCMParameterSpec(TAG_BITS, IV));
+        byte[] sealedCredentials = gcm.doFinal(plaintext.toByteArray());
+
+        byte[] proofKey = proofKeys.getPublic().getEncoded();
+        byte[] e2eePublicKey = e2eeKey.getEncoded();
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(proofKeys.getPrivate());
+        signer.update(transcript(serverKey.getPublicKey().getEncoded(), serverKey.getNonce(), hello.getPublicKey(), hello.getNonce(), capabilities,
+                proofKey, e2eePublicKey, wrappedKey, sealedCredentials));
+        return new PipelinedLogin(hello.getPublicKey(), hello.getNonce(), capabilities, proofKey, e2eePublicKey,
+                wrappedKey, sealedCredentials, signer.sign());
+    }
+
+    /**
+     * Verify the client's signature over this connection's server key and
+     * nonce, and unseal its credentials; throws if either fails
+     */
+    public static Credentials open(PipelinedLogin login, KeyPair serverKeys, byte[] serverNonce)
+            throws GeneralSecurityException {
+        PublicKey proofKey = KeyFactory.getInstance("RSA")
+                .generatePublic(new X509EncodedKeySpec(login.getProofKey()));
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(proofKey);
+        verifier.update(transcript(serverKeys.getPublic().getEncoded(), serverNonce, login.getKeyShare(),
+                login.getNonce(), login.getCapabilities(), login.getProofKey(), login.getE2eePublicKey(),
+                login.getWrappedKey(), login.getSealedCredentials()));
+        if (!verifier.verify(login.getSignature())) {
+            throw new SignatureException("Invalid login signature");
+        }
+
+        Cipher rsaCipher = Cipher.getInstance("RSA");
+        rsaCipher.init(Cipher.DECRYPT_MODE, serverKeys.getPrivate());
+        SecretKey sealingKey = new SecretKeySpec(rsaCipher.doFinal(login.getWrappedKey()), "AES");
+        Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+        gcm.init(Cipher.DECRYPT_MODE, sealingKey, new GCMParameterSpec(TAG_BITS, IV));
+        byte[] plaintext = gcm.doFinal(login.getSealedCredentials());
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext));
+            return new Credentials(in.readBoolean(), in.readUTF(), in.readUTF());
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Invalid sealed credentials");
+        }
+    }
+
+    /**
+     * Length-prefixed concatenation of the signed fields, so no two
+     * different logins sign the same bytes
+     */
+    private static byte[] transcript(byte[] serverKey, byte[] serverNonce, byte[] keyShare, byte[] nonce,
+                                     int capabilities, byte[] proofKey, byte[] e2eePublicKey, byte[] wrappedKey,
+                                     byte[] sealedCredentials) throws GeneralSecurityException {
+        byte[][] fields = { serverKey, serverNonce, keyShare, nonce, proofKey, e2eePublicKey, wrappedKey,
+                sealedCredentials };
+        int length = 4;
+        for (byte[] field : fields) {
+            if (field == null) {
+                throw new GeneralSecurityException("Incomplete pipelined login");
+            }
+            length += 4 + field.length;
+        }
+        ByteBuffer transcript = ByteBuffer.allocate(length);
+        transcript.putInt(capabilities);
+        for (byte[] field : fields) {
+            transcript.putInt(field.length).put(field);
+        }
+        return transcript.array();
+    }
+}
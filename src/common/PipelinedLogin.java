@@ -0,0 +1,51 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Everything a client needs to say before chatting, in one frame: its X25519
+ * key share, its RSA public key with a signature over the exchange, its
+ * credentials sealed to the server's RSA key, and its E2EE public key. Sent
+ * in reply to the server's public key instead of the step-by-step dialogue;
+ * see {@link PipelinedHandshake}.
+ */
+public class PipelinedLogin implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] keyShare;
+    private final byte[] nonce;
+    private final int capabilities;
+    private final byte[] proofKey;
+    private final byte[] e2eePublicKey;
+    private final byte[] wrappedKey;
+    private final byte[] sealedCredentials;
+    private final byte[] signature;
+
+    public PipelinedLogin(byte[] keyShare, byte[] nonce, int capabilities, byte[] proofKey, byte[] e2eePublicKey,
+                          byte[] wrappedKey, byte[] sealedCredentials, byte[] signature) {
+        this.keyShare = keyShare;
+        this.nonce = nonce;
+        this.capabilities = capabilities;
+        this.proofKey = proofKey;
+        this.e2eePublicKey = e2eePublicKey;
+        this.wrappedKey = wrappedKey;
+        this.sealedCredentials = sealedCredentials;
+        this.signature = signature;
+    }
+
+    public byte[] getKeyShare() { return keyShare; }
+    public byte[] getNonce() { return nonce; }
+    public int getCapabilities() { return capabilities; }
+    public byte[] getProofKey() { return proofKey; }
+    public byte[] getE2eePublicKey() { return e2eePublicKey; }
+    public byte[] getWrappedKey() { return wrappedKey; }
+    public byte[] getSealedCredentials() { return sealedCredentials; }
+    public byte[] getSignature() { return signature; }
+
+    /**
+     * The key agreement part, as the server's {@link X25519Handshake} expects it
+     */
+    public KeyAgreementHello getHello() {
+        return new KeyAgreementHello(keyShare, nonce, capabilities);
+    }
+}
@@ -0,0 +1,27 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a reconnecting client as the first frame of the connection: a
+ * ticket from an earlier session and a fresh nonce for the new session key.
+ * If the server refuses the ticket it sends its public key next, as it does
+ * for a {@link KeyRequest}.
+ */
+public class ResumeRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] ticket;
+    private final byte[] nonce;
+    private final int capabilities;
+
+    public ResumeRequest(byte[] ticket, byte[] nonce, int capabilities) {
+        this.ticket = ticket;
+        this.nonce = nonce;
+        this.capabilities = capabilities;
+    }
+
+    public byte[] getTicket() { return ticket; }
+    public byte[] getNonce() { return nonce; }
+    public int getCapabilities() { return capabilities; }
+}
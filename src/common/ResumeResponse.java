@@ -0,0 +1,25 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * The server's answer to a {@link ResumeRequest}. When the ticket is refused
+ * the client carries on with the full handshake on the same connection.
+ */
+public class ResumeResponse implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean accepted;
+    private final byte[] nonce;
+    private final int capabilities;
+
+    public ResumeResponse(boolean accepted, byte[] nonce, int capabilities) {
+        this.accepted = accepted;
+        this.nonce = nonce;
+        this.capabilities = capabilities;
+    }
+
+    public boolean isAccepted() { return accepted; }
+    public byte[] getNonce() { return nonce; }
+    public int getCapabilities() { return capabilities; }
+}
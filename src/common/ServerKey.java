@@ -0,0 +1,25 @@
+package common;
+
+import java.io.Serializable;
+import java.security.PublicKey;
+
+/**
+ * The server's answer to a {@link KeyRequest} or a refused ticket: its RSA
+ * public key for this connection and a fresh random nonce. A pipelined login
+ * signs the nonce, so it is only good on the connection it was made for,
+ * even when the key is the server's long-term one.
+ */
+public class ServerKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final PublicKey publicKey;
+    private final byte[] nonce;
+
+    public ServerKey(PublicKey publicKey, byte[] nonce) {
+        this.publicKey = publicKey;
+        this.nonce = nonce;
+    }
+
+    public PublicKey getPublicKey() { return publicKey; }
+    public byte[] getNonce() { return nonce; }
+}
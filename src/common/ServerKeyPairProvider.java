@@ -0,0 +1,95 @@
+package common;
+
+import java.security.*;
+import java.util.concurrent.*;
+
+/**
+ * Supplies the RSA key pair the server uses for one key exchange.
+ *
+ * ephemeral - a fresh 2048-bit pair per connection, generated inline (the original behaviour)
+ * longterm  - the pair in keys/ written by KeyGeneratorUtil, shared by every connection
+ * pool      - fresh pairs per connection, pre-generated by background threads
+ */
+public abstract class ServerKeyPairProvider {
+
+    public abstract KeyPair nextKeyPair() throws Exception;
+
+    public void close() {
+    }
+
+    public static ServerKeyPairProvider create(String mode, int poolSize, int poolThreads) throws Exception {
+        switch (mode) {
+            case "ephemeral":
+                return ephemeral();
+            case "longterm":
+                return longTerm("keys/server_public.key", "keys/server_private.key");
+            case "pool":
+                return new Pool(poolSize, poolThreads);
+            default:
+                throw new IllegalArgumentException("Unknown server key mode: " + mode);
+        }
+    }
+
+    public static ServerKeyPairProvider ephemeral() {
+        return new ServerKeyPairProvider() {
+            @Override
+            public KeyPair nextKeyPair() throws Exception {
+                return KeyGeneratorUtil.generateKeyPair();
+            }
+        };
+    }
+
+    public static ServerKeyPairProvider longTerm(String publicKeyPath, String privateKeyPath) throws Exception {
+        KeyPair keyPair = KeyGeneratorUtil.loadKeyPair(publicKeyPath, privateKeyPath);
+        return new ServerKeyPairProvider() {
+            @Override
+            public KeyPair nextKeyPair() {
+                return keyPair;
+            }
+        };
+    }
+
+    /**
+     * Bounded stock of single-use key pairs. Refill threads keep it full, so
+     * connections only wait if a burst outruns them.
+     */
+    private static class Pool extends ServerKeyPairProvider {
+        private final BlockingQueue<KeyPair> keyPairs;
+        private final ExecutorService refillers;
+
+        Pool(int size, int threads) {
+            keyPairs = new ArrayBlockingQueue<>(size);
+            refillers = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "KeyPairRefill");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+            for (int i = 0; i < threads; i++) {
+                refillers.execute(this::refill);
+            }
+        }
+
+        private void refill() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    keyPairs.put(KeyGeneratorUtil.generateKeyPair());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (NoSuchAlgorithmException e) {
+                LoggerUtil.log("Key pair pool refill failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public KeyPair nextKeyPair() throws InterruptedException {
+            return keyPairs.take();
+        }
+
+        @Override
+        public void close() {
+            refillers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES-GCM encryption for one connection. The two ciphers are created once and
+ * re-initialised per frame with the next nonce, so there is no provider
+ * lookup per message and the key schedule is computed once (the provider
+ * keeps it while the key is unchanged).
+ *
+ * Nonces are never sent: each is a 4-byte direction tag followed by a 64-bit
+ * frame counter, and both ends count the frames of each direction. Frames
+ * arrive in order over TCP, so a dropped, replayed or reordered frame fails
+ * authentication. Client and server use different direction tags, so the
+ * shared key never sees the same nonce twice.
+ *
+ * Encryption and decryption may run on different threads, but each direction
+ * must be used by one thread at a time.
+ */
+public class SessionCipher {
+    public static final int TAG_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int CLIENT_TO_SERVER = 1;
+    private static final int SERVER_TO_CLIENT = 2;
+
+    private final SecretKey key;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final int sendDirection;
+    private final int receiveDirection;
+    private long sendCounter = 0;
+    private long receiveCounter = 0;
+
+    /**
+     * @param client true on the client side of the connection
+     */
+    public SessionCipher(SecretKey key, boolean client) throws GeneralSecurityException {
+        this.key = key;
+        this.encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        this.decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        this.sendDirection = client ? CLIENT_TO_SERVER : SERVER_TO_CLIENT;
+        this.receiveDirection = client ? SERVER_TO_CLIENT : CLIENT_TO_SERVER;
+    }
+
+    public static int ciphertextLength(int plaintextLength) {
+        return plaintextLength + TAG_LENGTH;
+    }
+
+    public static int plaintextLength(int ciphertextLength) {
+        return ciphertextLength - TAG_LENGTH;
+    }
+
+    /**
+     * Encrypt into the caller's array; returns the number of bytes written,
+     * which is {@link #ciphertextLength(int)}
+     */
+    public int encrypt(byte[] in, int offset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key, nextNonce(sendDirection, sendCounter++));
+        return encryptCipher.doFinal(in, offset, length, out, outOffset);
+    }
+
+    /**
+     * Decrypt into the caller's array; returns the plaintext length
+     */
+    public int decrypt(byte[] in, int offset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+        decryptCipher.init(Cipher.DECRYPT_MODE, key, nextNonce(receiveDirection, receiveCounter++));
+        return decryptCipher.doFinal(in, offset, length, out, outOffset);
+    }
+
+    public int encrypt(ByteBuffer plaintext, ByteBuffer ciphertext) throws GeneralSecurityException {
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key, nextNonce(sendDirection, sendCounter++));
+        return encryptCipher.doFinal(plaintext, ciphertext);
+    }
+
+    public int decrypt(ByteBuffer ciphertext, ByteBuffer plaintext) throws GeneralSecurityException {
+        decryptCipher.init(Cipher.DECRYPT_MODE, key, nextNonce(receiveDirection, receiveCounter++));
+        return decryptCipher.doFinal(ciphertext, plaintext);
+    }
+
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        byte[] ciphertext = new byte[ciphertextLength(plaintext.length)];
+        encrypt(plaintext, 0, plaintext.length, ciphertext, 0);
+        return ciphertext;
+    }
+
+    public byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException {
+        if (ciphertext.length < TAG_LENGTH) {
+            throw new AEADBadTagException("Ciphertext shorter than tag");
+        }
+        byte[] plaintext = new byte[plaintextLength(ciphertext.length)];
+        decrypt(ciphertext, 0, ciphertext.length, plaintext, 0);
+        return plaintext;
+    }
+
+    private static GCMParameterSpec nextNonce(int direction, long counter) throws GeneralSecurityException {
+        if (counter < 0) {
+            throw new GeneralSecurityException("Nonce counter exhausted; reconnect to rekey");
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        nonce[0] = (byte) (direction >>> 24);
+        nonce[1] = (byte) (direction >>> 16);
+        nonce[2] = (byte) (direction >>> 8);
+        nonce[3] = (byte) direction;
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (counter >>> (56 - 8 * i));
+        }
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+}
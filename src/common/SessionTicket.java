@@ -0,0 +1,48 @@
+package common;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A resumption ticket issued by the server once a session is authenticated,
+ * sent to the client under the session key. The ticket itself is opaque to
+ * the client (only the server can decrypt it); the secret lets the client
+ * derive the key of a resumed session without another key exchange.
+ */
+public class SessionTicket implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final byte[] RESUMED_KEY_INFO = "p2p-chat resumed session key v1".getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] ticket;
+    private final byte[] secret;
+    private final long expiresAt;
+
+    public SessionTicket(byte[] ticket, byte[] secret, long expiresAt) {
+        this.ticket = ticket;
+        this.secret = secret;
+        this.expiresAt = expiresAt;
+    }
+
+    public byte[] getTicket() { return ticket; }
+    public byte[] getSecret() { return secret; }
+    public long getExpiresAt() { return expiresAt; }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+
+    /**
+     * Session key of a resumed session, fresh for every resumption because
+     * both sides contribute a nonce
+     */
+    public static SecretKey deriveSessionKey(byte[] secret, byte[] clientNonce, byte[] serverNonce)
+            throws GeneralSecurityException {
+        byte[] salt = new byte[clientNonce.length + serverNonce.length];
+        System.arraycopy(clientNonce, 0, salt, 0, clientNonce.length);
+        System.arraycopy(serverNonce, 0, salt, clientNonce.length, serverNonce.length);
+        return new SecretKeySpec(X25519Handshake.hkdf(salt, secret, RESUMED_KEY_INFO, 32), "AES");
+    }
+}
@@ -0,0 +1,55 @@
+package common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide socket I/O counters: how many write and read calls actually
+ * reached the socket, how many bytes each carried and how often buffered
+ * frames were flushed. Used to tune write coalescing under broadcast load.
+ */
+public class TransportStats {
+    private static final LongAdder socketWrites = new LongAdder();
+    private static final LongAdder bytesWritten = new LongAdder();
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder socketReads = new LongAdder();
+    private static final LongAdder bytesRead = new LongAdder();
+    private static final long startTime = System.currentTimeMillis();
+
+    public static void recordWrite(long bytes) {
+        socketWrites.increment();
+        bytesWritten.add(bytes);
+    }
+
+    public static void recordFlush() {
+        flushes.increment();
+    }
+
+    public static void recordRead(long bytes) {
+        socketReads.increment();
+        bytesRead.add(bytes);
+    }
+
+    public static long getSocketWrites() { return socketWrites.sum(); }
+    public static long getBytesWritten() { return bytesWritten.sum(); }
+    public static long getFlushes() { return flushes.sum(); }
+    public static long getSocketReads() { return socketReads.sum(); }
+    public static long getBytesRead() { return bytesRead.sum(); }
+
+    public static double getBytesPerWrite() {
+        long writes = socketWrites.sum();
+        return writes == 0 ? 0 : (double) bytesWritten.sum() / writes;
+    }
+
+    public static double getBytesPerRead() {
+        long reads = socketReads.sum();
+        return reads == 0 ? 0 : (double) bytesRead.sum() / reads;
+    }
+
+    /**
+     * Average flush rate since the process started
+     */
+    public static double getFlushesPerSecond() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        return flushes.sum() * 1000.0 / elapsed;
+    }
+}
@@ -0,0 +1,349 @@
+package common;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Binary encoding of everything that crosses the socket. A frame on the wire
+ * is a 4-byte big-endian length followed by that many bytes: a type byte and
+ * the value's body. Encrypted frames are plain byte arrays at this level; the
+ * plaintext inside them uses the same type byte + body encoding, without the
+ * length prefix.
+ *
+ * This replaces Java serialization on both layers, so frames carry no class
+ * descriptors and neither side keeps a per-stream handle table.
+ */
+public final class WireProtocol {
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    public static final int LENGTH_PREFIX = 4;
+
+    // Value types
+    static final byte BYTES = 1;
+    static final byte STRING = 2;
+    static final byte MESSAGE = 3;
+    static final byte KEY_MAP = 4;
+    static final byte RSA_PUBLIC_KEY = 5;
+    static final byte KEY_AGREEMENT_HELLO = 6;
+    static final byte RESUME_REQUEST = 7;
+    static final byte RESUME_RESPONSE = 8;
+    static final byte SESSION_TICKET = 9;
+    static final byte COMPRESSED = 10;
+    static final byte MESSAGE_BATCH = 11;
+    static final byte PIPELINED_LOGIN = 12;
+    static final byte KEY_REQUEST = 13;
+    static final byte SERVER_KEY = 14;
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Encode a value as a complete frame, length prefix included
+     */
+    public static byte[] encodeFrame(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        writeValue(out, value);
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - LENGTH_PREFIX;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + length + " bytes");
+        }
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Encode a value without a length prefix; used for the plaintext of encrypted frames
+     */
+    public static byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        writeValue(new DataOutputStream(bytes), value);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Size of the frame {@link #encodeEncryptedFrame} produces for a plaintext
+     */
+    public static int encryptedFrameLength(int plaintextLength) {
+        return LENGTH_PREFIX + 1 + 4 + SessionCipher.ciphertextLength(plaintextLength);
+    }
+
+    /**
+     * Encrypt an encoded plaintext straight into the caller's frame buffer,
+     * header included, so the ciphertext is never copied to add the header
+     */
+    public static void encodeEncryptedFrame(SessionCipher cipher, byte[] plaintext, ByteBuffer frame)
+            throws IOException, GeneralSecurityException {
+        int ciphertextLength = SessionCipher.ciphertextLength(plaintext.length);
+        int length = 1 + 4 + ciphertextLength;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + length + " bytes");
+        }
+        frame.putInt(length).put(BYTES).putInt(ciphertextLength);
+        cipher.encrypt(ByteBuffer.wrap(plaintext), frame);
+    }
+
+    /**
+     * The ciphertext inside an encrypted frame's body, as a view of the same
+     * buffer; the body's position is moved past it
+     */
+    public static ByteBuffer encryptedPayload(ByteBuffer frame) throws IOException {
+        try {
+            if (frame.get() != BYTES) {
+                throw new StreamCorruptedException("Expected an encrypted frame");
+            }
+            int length = frame.getInt();
+            if (length < 0 || length != frame.remaining()) {
+                throw new StreamCorruptedException("Invalid length: " + length);
+            }
+            ByteBuffer payload = frame.slice();
+            frame.position(frame.limit());
+            return payload;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated frame");
+        }
+    }
+
+    public static Object decode(byte[] data) throws IOException {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Decode one value that fills the buffer's remaining bytes
+     */
+    public static Object decode(ByteBuffer in) throws IOException {
+        try {
+            Object value = readValue(in);
+            if (in.hasRemaining()) {
+                throw new StreamCorruptedException("Trailing bytes after value");
+            }
+            return value;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated value");
+        }
+    }
+
+    /**
+     * Length of the frame starting at the buffer's position, from its prefix,
+     * or -1 if the prefix has not fully arrived yet
+     */
+    public static int frameLength(ByteBuffer in) throws IOException {
+        if (in.remaining() < LENGTH_PREFIX) {
+            return -1;
+        }
+        int length = in.getInt(in.position());
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            writeBytes(out, (byte[]) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Message) {
+            out.writeByte(MESSAGE);
+            writeMessage(out, (Message) value);
+        } else if (value instanceof MessageBatch) {
+            List<Message> messages = ((MessageBatch) value).getMessages();
+            out.writeByte(MESSAGE_BATCH);
+            out.writeInt(messages.size());
+            for (Message message : messages) {
+                writeMessage(out, message);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> keys = (Map<?, ?>) value;
+            out.writeByte(KEY_MAP);
+            out.writeInt(keys.size());
+            for (Map.Entry<?, ?> entry : keys.entrySet()) {
+                writeString(out, (String) entry.getKey());
+                writeBytes(out, (byte[]) entry.getValue());
+            }
+        } else if (value instanceof PublicKey) {
+            out.writeByte(RSA_PUBLIC_KEY);
+            writeBytes(out, ((PublicKey) value).getEncoded());
+        } else if (value instanceof ServerKey) {
+            ServerKey key = (ServerKey) value;
+            out.writeByte(SERVER_KEY);
+            writeBytes(out, key.getPublicKey().getEncoded());
+            writeBytes(out, key.getNonce());
+        } else if (value instanceof KeyAgreementHello) {
+            KeyAgreementHello hello = (KeyAgreementHello) value;
+            out.writeByte(KEY_AGREEMENT_HELLO);
+            writeBytes(out, hello.getPublicKey());
+            writeBytes(out, hello.getNonce());
+            out.writeInt(hello.getCapabilities());
+        } else if (value instanceof KeyRequest) {
+            out.writeByte(KEY_REQUEST);
+        } else if (value instanceof ResumeRequest) {
+            ResumeRequest request = (ResumeRequest) value;
+            out.writeByte(RESUME_REQUEST);
+            writeBytes(out, request.getTicket());
+            writeBytes(out, request.getNonce());
+            out.writeInt(request.getCapabilities());
+        } else if (value instanceof ResumeResponse) {
+            ResumeResponse response = (ResumeResponse) value;
+            out.writeByte(RESUME_RESPONSE);
+            out.writeBoolean(response.isAccepted());
+            writeBytes(out, response.getNonce());
+            out.writeInt(response.getCapabilities());
+        } else if (value instanceof PipelinedLogin) {
+            PipelinedLogin login = (PipelinedLogin) value;
+            out.writeByte(PIPELINED_LOGIN);
+            writeBytes(out, login.getKeyShare());
+            writeBytes(out, login.getNonce());
+            out.writeInt(login.getCapabilities());
+            writeBytes(out, login.getProofKey());
+            writeBytes(out, login.getE2eePublicKey());
+            writeBytes(out, login.getWrappedKey());
+            writeBytes(out, login.getSealedCredentials());
+            writeBytes(out, login.getSignature());
+        } else if (value instanceof SessionTicket) {
+            SessionTicket ticket = (SessionTicket) value;
+            out.writeByte(SESSION_TICKET);
+            writeBytes(out, ticket.getTicket());
+            writeBytes(out, ticket.getSecret());
+            out.writeLong(ticket.getExpiresAt());
+        } else {
+            throw new NotSerializableException("No wire encoding for " +
+                    (value == null ? "null" : value.getClass().getName()));
+        }
+    }
+
+    private static Object readValue(ByteBuffer in) throws IOException {
+        byte type = in.get();
+        switch (type) {
+            case BYTES:
+                return readBytes(in);
+            case STRING:
+                return readString(in);
+            case MESSAGE:
+                return readMessage(in);
+            case MESSAGE_BATCH: {
+                int count = in.getInt();
+                if (count < 0 || count > in.remaining()) {
+                    throw new StreamCorruptedException("Invalid batch size: " + count);
+                }
+                List<Message> messages = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    messages.add(readMessage(in));
+                }
+                return new MessageBatch(messages);
+            }
+            case KEY_MAP: {
+                int count = in.getInt();
+                if (count < 0 || count > in.remaining()) {
+                    throw new StreamCorruptedException("Invalid key map size: " + count);
+                }
+                Map<String, byte[]> keys = new HashMap<>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    keys.put(readString(in), readBytes(in));
+                }
+                return keys;
+            }
+            case RSA_PUBLIC_KEY:
+                return readPublicKey(in);
+            case SERVER_KEY:
+                return new ServerKey(readPublicKey(in), readBytes(in));
+            case KEY_AGREEMENT_HELLO:
+                return new KeyAgreementHello(readBytes(in), readBytes(in), in.getInt());
+            case KEY_REQUEST:
+                return new KeyRequest();
+            case RESUME_REQUEST:
+                return new ResumeRequest(readBytes(in), readBytes(in), in.getInt());
+            case RESUME_RESPONSE:
+                return new ResumeResponse(in.get() != 0, readBytes(in), in.getInt());
+            case PIPELINED_LOGIN:
+                return new PipelinedLogin(readBytes(in), readBytes(in), in.getInt(), readBytes(in), readBytes(in),
+                        readBytes(in), readBytes(in), readBytes(in));
+            case SESSION_TICKET:
+                return new SessionTicket(readBytes(in), readBytes(in), in.getLong());
+            case COMPRESSED: {
+                int originalLength = in.getInt();
+                if (originalLength <= 0 || originalLength > MAX_FRAME_SIZE) {
+                    throw new StreamCorruptedException("Invalid compressed length: " + originalLength);
+                }
+                ByteBuffer inflated = ByteBuffer.wrap(PayloadCompressor.inflate(in, originalLength));
+                if (inflated.get(0) == COMPRESSED) {
+                    throw new StreamCorruptedException("Nested compressed payload");
+                }
+                return decode(inflated);
+            }
+            default:
+                throw new StreamCorruptedException("Unknown value type: " + type);
+        }
+    }
+
+    private static PublicKey readPublicKey(ByteBuffer in) throws IOException {
+        try {
+            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(readBytes(in)));
+        } catch (GeneralSecurityException e) {
+            throw new StreamCorruptedException("Invalid public key: " + e.getMessage());
+        }
+    }
+
+    private static void writeMessage(DataOutputStream out, Message message) throws IOException {
+        writeString(out, message.getFrom());
+        writeString(out, message.getTo());
+        writeString(out, message.getContent());
+        LocalDateTime timestamp = message.getTimestamp();
+        out.writeLong(timestamp.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(timestamp.getNano());
+    }
+
+    private static Message readMessage(ByteBuffer in) throws IOException {
+        String from = readString(in);
+        String to = readString(in);
+        String content = readString(in);
+        LocalDateTime timestamp = LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC);
+        return new Message(from, to, content, timestamp);
+    }
+
+    // Nullable byte arrays and strings: length -1 stands for null
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new StreamCorruptedException("Invalid length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,81 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import javax.crypto.*;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Ephemeral X25519 key agreement with HKDF-SHA256, an alternative to
+ * wrapping a client-chosen AES key under the server's RSA key. Both sides do
+ * one cheap key generation and one agreement, and the public keys on the
+ * wire are 44 bytes instead of a serialized RSA key.
+ */
+public class X25519Handshake {
+    private static final String ALGORITHM = "X25519";
+    private static final int NONCE_LENGTH = 32;
+    private static final byte[] SESSION_KEY_INFO = "p2p-chat session key v1".getBytes(StandardCharsets.UTF_8);
+
+    private final KeyPair keyPair;
+    private final byte[] nonce;
+
+    public X25519Handshake() throws GeneralSecurityException {
+        keyPair = KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+        nonce = new byte[NONCE_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+    }
+
+    /**
+     * Our half of the exchange, to send to the peer, with the
+     * {@link Capabilities} we offer (client) or accept (server)
+     */
+    public KeyAgreementHello getHello(int capabilities) {
+        return new KeyAgreementHello(keyPair.getPublic().getEncoded(), nonce, capabilities);
+    }
+
+    /**
+     * Derive the AES-256 session key from the peer's hello. The client's nonce
+     * always comes first in the salt so both sides derive the same key.
+     */
+    public SecretKey deriveSessionKey(KeyAgreementHello peer, boolean isClient) throws GeneralSecurityException {
+        if (peer.getNonce() == null || peer.getNonce().length != NONCE_LENGTH) {
+            throw new GeneralSecurityException("Invalid key agreement nonce");
+        }
+        PublicKey peerKey = KeyFactory.getInstance(ALGORITHM)
+                .generatePublic(new X509EncodedKeySpec(peer.getPublicKey()));
+        KeyAgreement agreement = KeyAgreement.getInstance(ALGORITHM);
+        agreement.init(keyPair.getPrivate());
+        agreement.doPhase(peerKey, true);
+        byte[] sharedSecret = agreement.generateSecret();
+
+        byte[] salt = new byte[NONCE_LENGTH * 2];
+        System.arraycopy(isClient ? nonce : peer.getNonce(), 0, salt, 0, NONCE_LENGTH);
+        System.arraycopy(isClient ? peer.getNonce() : nonce, 0, salt, NONCE_LENGTH, NONCE_LENGTH);
+        return new SecretKeySpec(hkdf(salt, sharedSecret, SESSION_KEY_INFO, 32), "AES");
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869), extract then expand
+     */
+    static byte[] hkdf(byte[] salt, byte[] inputKey, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(inputKey);
+
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (byte counter = 1; offset < length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update(counter);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, n);
+            offset += n;
+        }
+        return output;
+    }
+}
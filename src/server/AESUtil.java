@@ -3,20 +3,24 @@ package server;
 import java.io.*;
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
+import common.WireProtocol;
 
 public class AESUtil {
-    public static byte[] encryptObject(Serializable object, SecretKey aesKey) throws Exception {
-        // Serialize object to byte[]
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream out = new ObjectOutputStream(bos);
-        out.writeObject(object);
-        out.flush();
-        byte[] serialized = bos.toByteArray();
+    public static byte[] encryptObject(Object object, SecretKey aesKey) throws Exception {
+        return encryptBytes(encode(object), aesKey);
+    }
+
+    /**
+     * Encode object to byte[]; lets a broadcast encode once and encrypt per recipient
+     */
+    public static byte[] encode(Object object) throws IOException {
+        return WireProtocol.encode(object);
+    }
 
-        // Encrypt bytes
+    public static byte[] encryptBytes(byte[] plaintext, SecretKey aesKey) throws Exception {
         Cipher cipher = Cipher.getInstance("AES");
         cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-        return cipher.doFinal(serialized);
+        return cipher.doFinal(plaintext);
     }
 
     public static Object decryptObject(byte[] encrypted, SecretKey aesKey) throws Exception {
@@ -24,10 +28,7 @@ public class AESUtil {
         cipher.init(Cipher.DECRYPT_MODE, aesKey);
         byte[] decrypted = cipher.doFinal(encrypted);
 
-        // Deserialize object
-        ByteArrayInputStream bis = new ByteArrayInputStream(decrypted);
-        ObjectInputStream in = new ObjectInputStream(bis);
-        return in.readObject();
+        return WireProtocol.decode(decrypted);
     }
 }
 
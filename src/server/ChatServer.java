@@ -2,22 +2,71 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.security.*;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import common.AuditLog;
+import common.BufferPool;
+import common.FrameOutputStream;
 import common.LoggerUtil;
+import common.Metrics;
+import common.PasswordHasher;
+import common.PayloadCompressor;
+import common.ServerKeyPairProvider;
+import common.TransportStats;
 
 public class ChatServer {
     private static final int PORT = 12345;
-    private static final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    private static final ConnectionRegistry clients = new ConnectionRegistry();
+    private static final SessionRegistry sessions = new SessionRegistry();
     private static UserManager userManager;
+    private static ServerContext context;
+    private static MetricsExporter metrics;
 
     public static void main(String[] args) throws Exception {
         System.out.println("=== Secure Chat Server ===");
         System.out.println("Initializing server...");
+        ServerConfig config = ServerConfig.parse(args);
 
-        // Initialize user manager
-        userManager = new UserManager();
+        // The auth log is written by a background thread: lines wait at most the flush interval,
+        // a full buffer blocks or drops, and the file rotates by size and/or age
+        LoggerUtil.configure(config.getInt("log-buffer", 8192), "drop".equals(config.get("log-when-full", "block")),
+                config.getInt("log-flush-ms", 50), config.getInt("log-fsync-ms", -1),
+                config.getInt("log-rotate-mb", 64) * 1024L * 1024L,
+                config.getInt("log-rotate-hours", 0) * 3_600_000L, config.getInt("log-keep", 5));
+        // Typed account events for the admin tool's queries, in indexed segments under audit/
+        if (!"off".equals(config.get("audit", "on"))) {
+            AuditLog.configure(config.get("audit-dir", AuditLog.DEFAULT_DIRECTORY),
+                    config.getInt("audit-segment-mb", 64) * 1024L * 1024L, 1000);
+        }
+        // A continuous Flight Recorder recording, kept in a ring bounded by size and age and
+        // written to the file on exit (or on demand with jcmd <pid> JFR.dump name=chat-server)
+        if ("on".equals(config.get("jfr", "off"))) {
+            startFlightRecording(config);
+        }
+
+        // Password hash cost for new and upgraded accounts: a fixed PBKDF2 iteration count,
+        // or one calibrated on this machine to a target time per login
+        int hashTargetMillis = config.getInt("hash-target-ms", 0);
+        if (hashTargetMillis > 0) {
+            PasswordHasher.configure(PasswordHasher.calibrate(hashTargetMillis));
+        } else {
+            PasswordHasher.configure(config.getInt("hash-iterations", PasswordHasher.DEFAULT_ITERATIONS));
+        }
+        System.out.println("Password hashing: " + PasswordHasher.PBKDF2 + ", "
+                + PasswordHasher.getIterations() + " iterations");
+
+        // Accounts live in users.db plus a journal compacted into it once it reaches the set size,
+        // or in the memory-mapped users.map, which imports users.db when first created
+        UserStore userStore = UserStore.create(config.get("user-store", "journal"),
+                config.getInt("journal-compact-kb", 4096) * 1024L);
+        // Initialize user manager; password hashes run on a core-sized pool with a bounded queue
+        userManager = new UserManager(config.getInt("auth-threads", Runtime.getRuntime().availableProcessors()),
+                config.getInt("auth-queue", 256), userStore);
         System.out.println("User manager initialized. Registered users: " + userManager.getUserCount());
 
         // Create admin user if none exists
@@ -31,38 +80,94 @@ public class ChatServer {
             }
         }
 
+        // Outbound queue policy: chat past the high-water mark is dropped oldest-first,
+        // and a client stuck over it for the stall timeout is disconnected
+        OutboundQueue.configure(config.getInt("queue-high-water", 1024),
+                config.getInt("queue-stall-seconds", 30) * 1000L);
+
+        // Blocking mode socket buffers, and how long a busy writer waits to coalesce frames
+        ClientHandler.configureTransport(config.getInt("socket-buffer-size", FrameOutputStream.DEFAULT_BUFFER_SIZE),
+                config.getInt("write-coalesce-micros", 100));
+
+        // How the server gets the RSA key pair for each key exchange
+        String keyMode = config.get("server-key", "ephemeral");
+        ServerKeyPairProvider keyPairs = ServerKeyPairProvider.create(keyMode,
+                config.getInt("key-pool-size", 64), config.getInt("key-pool-threads", 1));
+        System.out.println("Server key mode: " + keyMode);
+        // Resumption tickets let a reconnecting client skip the key exchange and
+        // authentication; a lifetime of 0 turns them off
+        SessionTickets tickets = new SessionTickets(config.getInt("ticket-lifetime-seconds", 3600) * 1000L,
+                config.getInt("ticket-key-rotation-seconds", 3600) * 1000L);
+        // Frame buffers are borrowed from a size-classed pool: heap, direct (off-heap) or off
+        BufferPool buffers = BufferPool.create(config.get("buffer-pool", "heap"),
+                config.getInt("buffer-pool-size", 256));
+        // Deflate is offered to clients that ask for it; small payloads are never compressed
+        PayloadCompressor compressor = null;
+        if (!"off".equals(config.get("compression", "on"))) {
+            compressor = new PayloadCompressor(config.getInt("compression-level", 6),
+                    config.getInt("compression-threshold", PayloadCompressor.DEFAULT_THRESHOLD));
+        }
+        context = new ServerContext(clients, sessions, userManager, keyPairs, tickets, buffers, compressor);
+
+        // Latencies, counters and gauges: served at /metrics on a loopback port if one is given,
+        // and written to a snapshot file at a fixed interval
+        registerGauges();
+        metrics = new MetricsExporter(config.getInt("metrics-port", 0), config.get("metrics-file", "metrics.txt"),
+                Math.max(1, config.getInt("metrics-interval-seconds", 60)));
+
         LoggerUtil.log("Chat server starting on port " + PORT);
 
+        if ("nio".equals(config.get("io", "blocking"))) {
+            runNioServer(config);
+        } else {
+            runBlockingServer(config);
+        }
+    }
+
+    /**
+     * Record the JDK's own events with the given settings (GC, safepoints,
+     * lock contention, ...) alongside the server's handshake, user save and
+     * delivery events. Deliveries faster than the threshold are left out.
+     */
+    private static void startFlightRecording(ServerConfig config) {
+        try {
+            Recording recording = new Recording(Configuration.getConfiguration(config.get("jfr-settings", "default")));
+            recording.setName("chat-server");
+            recording.setToDisk(true);
+            recording.setMaxSize(config.getInt("jfr-max-mb", 64) * 1024L * 1024L);
+            recording.setMaxAge(Duration.ofMinutes(config.getInt("jfr-max-age-minutes", 30)));
+            recording.setDestination(Paths.get(config.get("jfr-file", "chat-server.jfr")));
+            recording.setDumpOnExit(true);
+            recording.enable(HandshakeEvent.class);
+            recording.enable(UserSaveEvent.class);
+            recording.enable(DeliveryEvent.class)
+                    .withThreshold(Duration.ofMillis(config.getInt("jfr-delivery-threshold-ms", 1)));
+            recording.start();
+            System.out.println("Flight recording started: " + recording.getDestination());
+        } catch (Exception e) {
+            System.err.println("Flight recording not started: " + e.getMessage());
+            LoggerUtil.log("Flight recording not started: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One thread per connection, each blocking on its socket. With
+     * --threads=virtual the handlers run on virtual threads instead.
+     */
+    private static void runBlockingServer(ServerConfig config) {
+        ExecutorService virtualThreads = newVirtualThreadExecutor(config);
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started on port " + PORT);
+            System.out.println("Server started on port " + PORT
+                    + (virtualThreads != null ? " (virtual threads)" : ""));
             System.out.println("Waiting for client connections...");
 
-            // Graceful shutdown hook
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                System.out.println("\nShutting down server...");
-                LoggerUtil.log("Server shutdown initiated");
-                
-                // Notify all connected clients
-                for (ClientHandler client : clients) {
-                    try {
-                        if (client.isAuthenticated()) {
-                            // Send shutdown notice
-                            System.out.println("Notifying client: " + client.getUsername());
-                        }
-                    } catch (Exception e) {
-                        // Ignore errors during shutdown
-                    }
-                }
-                
+            addShutdownHook(() -> {
                 try {
                     serverSocket.close();
                 } catch (IOException e) {
                     // Ignore
                 }
-                
-                LoggerUtil.log("Server shutdown completed");
-                System.out.println("Server shutdown completed");
-            }));
+            });
 
             while (true) {
                 try {
@@ -71,13 +176,17 @@ public class ChatServer {
                     System.out.println("New client connection from: " + clientAddress);
                     LoggerUtil.log("Client connection accepted from: " + clientAddress);
 
-                    ClientHandler handler = new ClientHandler(socket, clients, userManager);
+                    ClientHandler handler = new ClientHandler(socket, context, virtualThreads);
                     clients.add(handler);
                     
                     // Start client handler in new thread
-                    Thread clientThread = new Thread(handler);
-                    clientThread.setName("ClientHandler-" + clientAddress);
-                    clientThread.start();
+                    if (virtualThreads != null) {
+                        virtualThreads.execute(handler);
+                    } else {
+                        Thread clientThread = new Thread(handler);
+                        clientThread.setName("ClientHandler-" + clientAddress);
+                        clientThread.start();
+                    }
 
                     // Log current statistics
                     System.out.println("Active connections: " + clients.size());
@@ -96,22 +205,140 @@ public class ChatServer {
         }
     }
 
+    /**
+     * Executor starting one virtual thread per task, or null when platform
+     * threads were asked for. Looked up reflectively so the server still
+     * builds and runs on JDKs older than 21, where it falls back.
+     */
+    private static ExecutorService newVirtualThreadExecutor(ServerConfig config) {
+        if (!"virtual".equals(config.get("threads", "platform"))) {
+            return null;
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads need Java 21 or later; using platform threads");
+            LoggerUtil.log("Virtual threads unavailable, falling back to platform threads");
+            return null;
+        }
+    }
+
+    /**
+     * A few selector threads own all connections; see NioChatServer
+     */
+    private static void runNioServer(ServerConfig config) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int ioThreads = config.getInt("io-threads", cores);
+        int workerThreads = config.getInt("worker-threads", cores);
+        try {
+            NioChatServer server = new NioChatServer(PORT, context, ioThreads, workerThreads);
+            server.start();
+            System.out.println("Server started on port " + PORT + " (NIO, " + ioThreads + " event loops, "
+                    + workerThreads + " workers)");
+            System.out.println("Waiting for client connections...");
+
+            addShutdownHook(server::close);
+            server.awaitTermination();
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+            LoggerUtil.log("Server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Graceful shutdown hook; closeServer stops accepting connections
+     */
+    private static void addShutdownHook(Runnable closeServer) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("\nShutting down server...");
+            LoggerUtil.log("Server shutdown initiated");
+            
+            // Notify all connected clients
+            for (ChatSession client : clients) {
+                try {
+                    if (client.isAuthenticated()) {
+                        // Send shutdown notice
+                        System.out.println("Notifying client: " + client.getUsername());
+                    }
+                } catch (Exception e) {
+                    // Ignore errors during shutdown
+                }
+            }
+            
+            closeServer.run();
+            context.getKeyPairs().close();
+            metrics.close();
+            
+            LoggerUtil.log("Server shutdown completed");
+            System.out.println("Server shutdown completed");
+        }));
+    }
+
+    /**
+     * Server state read at each metrics export; the hot-path counters and
+     * latencies are registered where they are recorded
+     */
+    private static void registerGauges() {
+        Metrics.gauge("server_connections", "Open client connections", clients::size);
+        Metrics.gauge("server_sessions", "Authenticated sessions", sessions::getSessionCount);
+        Metrics.gauge("users_registered", "Registered accounts", userManager::getUserCount);
+        Metrics.gauge("auth_queue_depth", "Password hashes waiting for an auth thread",
+                userManager::getAuthQueueDepth);
+        Metrics.gauge("outbound_queued_frames", "Frames waiting in all outbound queues", () -> {
+            long queued = 0;
+            for (ChatSession client : clients) {
+                queued += client.getQueueDepth();
+            }
+            return queued;
+        });
+        Metrics.gauge("outbound_max_queue_depth", "Deepest outbound queue", () -> {
+            int deepest = 0;
+            for (ChatSession client : clients) {
+                deepest = Math.max(deepest, client.getQueueDepth());
+            }
+            return deepest;
+        });
+        Metrics.counter("outbound_dropped_frames_total", "Chat frames dropped for slow clients",
+                OutboundQueue::getDroppedFrames);
+        Metrics.counter("transport_bytes_read_total", "Bytes read from client sockets", TransportStats::getBytesRead);
+        Metrics.counter("transport_bytes_written_total", "Bytes written to client sockets",
+                TransportStats::getBytesWritten);
+        Metrics.counter("transport_socket_reads_total", "Socket read calls", TransportStats::getSocketReads);
+        Metrics.counter("transport_socket_writes_total", "Socket write calls", TransportStats::getSocketWrites);
+        Metrics.counter("user_store_writes_total", "Account records written", userManager::getStoreWrites);
+        Metrics.counter("user_store_syncs_total", "Account store syncs", userManager::getStoreSyncs);
+    }
+
     /**
      * Get current server statistics
      */
     public static ServerStats getServerStats() {
         int totalConnections = clients.size();
-        int authenticatedUsers = 0;
+        int authenticatedUsers = sessions.getSessionCount();
         List<String> activeUsers = new ArrayList<>();
+        sessions.forEachSession(client -> activeUsers.add(client.getUsername()));
+        long queuedFrames = 0;
+        int maxQueueDepth = 0;
 
-        for (ClientHandler client : clients) {
-            if (client.isAuthenticated()) {
-                authenticatedUsers++;
-                activeUsers.add(client.getUsername());
-            }
+        for (ChatSession client : clients) {
+            int depth = client.getQueueDepth();
+            queuedFrames += depth;
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
         }
 
-        return new ServerStats(totalConnections, authenticatedUsers, activeUsers, userManager.getUserCount());
+        SessionTickets tickets = context.getTickets();
+        BufferPool buffers = context.getBuffers();
+        return new ServerStats(totalConnections, authenticatedUsers, activeUsers, userManager.getUserCount(),
+                queuedFrames, maxQueueDepth, OutboundQueue.getDroppedFrames(),
+                tickets.getFullHandshakes(), tickets.getResumedHandshakes(), tickets.getRejectedTickets(),
+                buffers.getAcquired(), buffers.getAllocated(), buffers.getAllocatedBytes(),
+                TransportStats.getSocketWrites(), TransportStats.getBytesPerWrite(), TransportStats.getFlushesPerSecond(),
+                TransportStats.getSocketReads(), TransportStats.getBytesPerRead(),
+                PayloadCompressor.getCompressedPayloads(), PayloadCompressor.getBytesSaved(),
+                PayloadCompressor.getCompressMillis(), PayloadCompressor.getDecompressMillis(),
+                userManager.getStoreWrites(), userManager.getStoreSyncs());
     }
 
     public static class ServerStats {
@@ -119,23 +346,112 @@ public class ChatServer {
         private int authenticatedUsers;
         private List<String> activeUsers;
         private int registeredUsers;
+        private long queuedFrames;
+        private int maxQueueDepth;
+        private long droppedFrames;
+        private long fullHandshakes;
+        private long resumedHandshakes;
+        private long rejectedTickets;
+        private long bufferAcquires;
+        private long bufferAllocations;
+        private long bufferAllocatedBytes;
+        private long socketWrites;
+        private double bytesPerWrite;
+        private double flushesPerSecond;
+        private long socketReads;
+        private double bytesPerRead;
+        private long compressedPayloads;
+        private long compressionBytesSaved;
+        private long compressMillis;
+        private long decompressMillis;
+        private long userStoreWrites;
+        private long userStoreSyncs;
 
-        public ServerStats(int totalConnections, int authenticatedUsers, List<String> activeUsers, int registeredUsers) {
+        public ServerStats(int totalConnections, int authenticatedUsers, List<String> activeUsers, int registeredUsers,
+                           long queuedFrames, int maxQueueDepth, long droppedFrames,
+                           long fullHandshakes, long resumedHandshakes, long rejectedTickets,
+                           long bufferAcquires, long bufferAllocations, long bufferAllocatedBytes,
+                           long socketWrites, double bytesPerWrite, double flushesPerSecond,
+                           long socketReads, double bytesPerRead,
+                           long compressedPayloads, long compressionBytesSaved,
+                           long compressMillis, long decompressMillis,
+                           long userStoreWrites, long userStoreSyncs) {
             this.totalConnections = totalConnections;
             this.authenticatedUsers = authenticatedUsers;
             this.activeUsers = new ArrayList<>(activeUsers);
             this.registeredUsers = registeredUsers;
+            this.queuedFrames = queuedFrames;
+            this.maxQueueDepth = maxQueueDepth;
+            this.droppedFrames = droppedFrames;
+            this.fullHandshakes = fullHandshakes;
+            this.resumedHandshakes = resumedHandshakes;
+            this.rejectedTickets = rejectedTickets;
+            this.bufferAcquires = bufferAcquires;
+            this.bufferAllocations = bufferAllocations;
+            this.bufferAllocatedBytes = bufferAllocatedBytes;
+            this.socketWrites = socketWrites;
+            this.bytesPerWrite = bytesPerWrite;
+            this.flushesPerSecond = flushesPerSecond;
+            this.socketReads = socketReads;
+            this.bytesPerRead = bytesPerRead;
+            this.compressedPayloads = compressedPayloads;
+            this.compressionBytesSaved = compressionBytesSaved;
+            this.compressMillis = compressMillis;
+            this.decompressMillis = decompressMillis;
+            this.userStoreWrites = userStoreWrites;
+            this.userStoreSyncs = userStoreSyncs;
         }
 
         public int getTotalConnections() { return totalConnections; }
         public int getAuthenticatedUsers() { return authenticatedUsers; }
         public List<String> getActiveUsers() { return activeUsers; }
         public int getRegisteredUsers() { return registeredUsers; }
+        public long getQueuedFrames() { return queuedFrames; }
+        public int getMaxQueueDepth() { return maxQueueDepth; }
+        public long getDroppedFrames() { return droppedFrames; }
+        public long getFullHandshakes() { return fullHandshakes; }
+        public long getResumedHandshakes() { return resumedHandshakes; }
+        public long getRejectedTickets() { return rejectedTickets; }
+        public long getBufferAcquires() { return bufferAcquires; }
+        public long getBufferAllocations() { return bufferAllocations; }
+        public long getBufferAllocatedBytes() { return bufferAllocatedBytes; }
+        public long getSocketWrites() { return socketWrites; }
+        public double getBytesPerWrite() { return bytesPerWrite; }
+        public double getFlushesPerSecond() { return flushesPerSecond; }
+        public long getSocketReads() { return socketReads; }
+        public double getBytesPerRead() { return bytesPerRead; }
+        public long getCompressedPayloads() { return compressedPayloads; }
+        public long getCompressionBytesSaved() { return compressionBytesSaved; }
+        public long getCompressMillis() { return compressMillis; }
+        public long getDecompressMillis() { return decompressMillis; }
+        public long getUserStoreWrites() { return userStoreWrites; }
+        public long getUserStoreSyncs() { return userStoreSyncs; }
+
+        /**
+         * Fresh buffer bytes allocated per frame buffer borrowed; close to zero
+         * once the pool has warmed up
+         */
+        public double getAllocatedBytesPerFrame() {
+            return bufferAcquires == 0 ? 0 : (double) bufferAllocatedBytes / bufferAcquires;
+        }
 
         @Override
         public String toString() {
-            return String.format("Server Stats - Total Connections: %d, Authenticated: %d, Registered Users: %d, Active Users: %s",
-                    totalConnections, authenticatedUsers, registeredUsers, activeUsers);
+            return String.format("Server Stats - Total Connections: %d, Authenticated: %d, Registered Users: %d, "
+                    + "Queued Frames: %d, Max Queue Depth: %d, Dropped Frames: %d, "
+                    + "Full Handshakes: %d, Resumed Handshakes: %d, Rejected Tickets: %d, "
+                    + "Frame Buffers: %d borrowed / %d allocated (%.1f bytes per frame), "
+                    + "Socket Writes: %d (%.1f bytes each, %.2f flushes/s), Socket Reads: %d (%.1f bytes each), "
+                    + "Compressed Payloads: %d (%d bytes saved, %d ms compressing, %d ms inflating), "
+                    + "User Store: %d writes in %d syncs, "
+                    + "Active Users: %s",
+                    totalConnections, authenticatedUsers, registeredUsers,
+                    queuedFrames, maxQueueDepth, droppedFrames,
+                    fullHandshakes, resumedHandshakes, rejectedTickets,
+                    bufferAcquires, bufferAllocations, getAllocatedBytesPerFrame(),
+                    socketWrites, bytesPerWrite, flushesPerSecond, socketReads, bytesPerRead,
+                    compressedPayloads, compressionBytesSaved, compressMillis, decompressMillis,
+                    userStoreWrites, userStoreSyncs, activeUsers);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,552 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.SecretKey;
+import common.*;
+
+/**
+ * Chat-phase behaviour shared by every connected client, whatever I/O model
+ * serves it. Subclasses own the transport and the handshake; once a session is
+ * authenticated, routing, commands and public key distribution live here.
+ *
+ * Nothing is written to the client on the sender's thread: frames go into the
+ * session's {@link OutboundQueue} and the subclass's writer encrypts and
+ * writes them, so one slow client cannot stall the room.
+ */
+public abstract class ChatSession {
+    protected final ConnectionRegistry clients;
+    protected final SessionRegistry sessions;
+    protected final UserManager userManager;
+    protected final ServerContext context;
+    protected final BufferPool buffers;
+    // Session encryption, set once the key exchange or resumption has produced a key
+    protected SessionCipher crypto;
+    protected String username;
+    protected volatile boolean isAuthenticated = false;
+    // Set when the session was restored from a ticket instead of a full handshake
+    protected boolean resumed = false;
+    // Set when the client negotiated compression; null means payloads go uncompressed
+    protected PayloadCompressor compressor;
+    // E2EE public key that arrived with a successful pipelined login
+    protected byte[] pipelinedPublicKey;
+    protected final OutboundQueue outbound = new OutboundQueue();
+    private final long connectedAt = System.nanoTime();
+    // Sent with the server key; a pipelined login must have signed it
+    private byte[] serverKeyNonce;
+
+    // Static map to store username -> public key; concurrent so no monitor pins a virtual thread
+    private static final Map<String, PublicKey> publicKeys = new ConcurrentHashMap<>();
+
+    // Handshake phases, timed by the subclasses around their own steps
+    protected static final Histogram KEY_EXCHANGE_TIME = Metrics.latency("handshake_key_exchange_seconds",
+            "Key exchange, from sending the server key to holding a session key");
+    protected static final Histogram RSA_AUTH_TIME = Metrics.latency("handshake_rsa_auth_seconds",
+            "RSA challenge and signature check");
+    protected static final Histogram USER_AUTH_TIME = Metrics.latency("handshake_user_auth_seconds",
+            "Username and password authentication, all attempts");
+    private static final Histogram HANDSHAKE_TIME = Metrics.latency("handshake_seconds",
+            "Connection to joining the chat");
+    private static final LongAdder HANDSHAKE_FAILURES = Metrics.counter("handshake_failures_total",
+            "Connections dropped before joining the chat");
+    private static final Histogram DISPATCH_TIME = Metrics.latency("chat_dispatch_seconds",
+            "Routing one decrypted frame from an authenticated client");
+    private static final LongAdder FRAMES_RECEIVED = Metrics.counter("chat_frames_received_total",
+            "Decrypted frames from authenticated clients");
+    private static final Histogram BROADCAST_TIME = Metrics.latency("chat_broadcast_seconds",
+            "Encoding a room message and queueing it for every recipient");
+    private static final Histogram BROADCAST_FANOUT = Metrics.distribution("chat_broadcast_fanout",
+            "Sessions a room message was queued for");
+    private static final Histogram PRIVATE_TIME = Metrics.latency("chat_private_seconds",
+            "Encoding a private message and queueing it for the recipient's sessions");
+    private static final LongAdder PRIVATE_UNDELIVERABLE = Metrics.counter("chat_private_undeliverable_total",
+            "Private messages to users who were not online");
+
+    protected ChatSession(ServerContext context) {
+        this.context = context;
+        this.clients = context.getClients();
+        this.sessions = context.getSessions();
+        this.userManager = context.getUserManager();
+        this.buffers = context.getBuffers();
+    }
+
+    /**
+     * Write one complete, already encoded frame to the client. Only called
+     * by the session's writer. Takes ownership of the buffer and releases it
+     * to the pool once it has been written.
+     */
+    protected abstract void writeEncodedFrame(ByteBuffer frame) throws Exception;
+
+    /**
+     * Called after a frame has been queued, to wake the writer if needed
+     */
+    protected abstract void onFrameQueued();
+
+    /**
+     * Drop the connection without waiting for queued frames
+     */
+    protected abstract void disconnect();
+
+    /**
+     * The client's address, for logs and events
+     */
+    protected abstract String getClientAddress();
+
+    /**
+     * Route one decrypted object received after authentication
+     */
+    protected void dispatch(Object receivedData) throws Exception {
+        long start = System.nanoTime();
+        FRAMES_RECEIVED.increment();
+        try {
+            routeFrame(receivedData);
+        } finally {
+            DISPATCH_TIME.recordSince(start);
+        }
+    }
+
+    private void routeFrame(Object receivedData) throws Exception {
+        if (receivedData instanceof Message) {
+            route((Message) receivedData);
+        } else if (receivedData instanceof MessageBatch) {
+            // Every message of the batch is routed before the next frame is read
+            for (Message msg : ((MessageBatch) receivedData).getMessages()) {
+                route(msg);
+            }
+        } else if (receivedData instanceof String) {
+            String command = (String) receivedData;
+            handleCommand(command);
+        }
+    }
+
+    private void route(Message msg) throws Exception {
+        // LoggerUtil.log("Message from " + username + ": " + msg.getContent()); // Do not log plaintext for E2EE
+        if (msg.getTo() != null && !msg.getTo().trim().isEmpty()) {
+            sendPrivate(msg);
+        } else {
+            broadcast(msg);
+        }
+    }
+
+    private void handleCommand(String command) throws Exception {
+        String[] parts = command.split(":", 2);
+        String cmd = parts[0];
+
+        switch (cmd) {
+            case "CHANGE_PASSWORD":
+                if (parts.length == 2) {
+                    String[] passwords = parts[1].split("\\|", 2);
+                    if (passwords.length == 2) {
+                        String oldPassword = passwords[0];
+                        String newPassword = passwords[1];
+
+                        if (userManager.changePassword(username, oldPassword, newPassword)) {
+                            sendEncryptedMessage("PASSWORD_CHANGED:Password changed successfully");
+                            LoggerUtil.log("Password changed for user: " + username);
+                        } else {
+                            sendEncryptedMessage("PASSWORD_ERROR:Failed to change password");
+                        }
+                    }
+                }
+                break;
+
+            case "USER_INFO":
+                UserManager.UserInfo userInfo = userManager.getUserInfo(username);
+                if (userInfo != null) {
+                    String info = String.format("USER_INFO:Username: %s, Created: %s, Last Login: %s, Active: %s",
+                            userInfo.getUsername(),
+                            new Date(userInfo.getCreatedDate()),
+                            userInfo.getLastLoginDate() > 0 ? new Date(userInfo.getLastLoginDate()) : "Never",
+                            userInfo.isActive() ? "Yes" : "No");
+                    sendEncryptedMessage(info);
+                }
+                break;
+
+            case "QUIT":
+                LoggerUtil.log("User " + username + " disconnected gracefully");
+                return;
+
+            default:
+                sendEncryptedMessage("UNKNOWN_COMMAND:Command not recognized");
+        }
+    }
+
+    protected void sendEncryptedMessage(String message) throws Exception {
+        queueFrame(new OutboundQueue.Frame(EncodedMessage.of(message), false, false));
+    }
+
+    protected void sendEncryptedMessage(Map<String, byte[]> pubKeyMap) throws Exception {
+        queueFrame(new OutboundQueue.Frame(EncodedMessage.of(pubKeyMap), false, false));
+    }
+
+    protected void sendEncryptedMessage(SessionTicket ticket) throws Exception {
+        queueFrame(new OutboundQueue.Frame(EncodedMessage.of(ticket), false, false));
+    }
+
+    /**
+     * Settle the capabilities the client offered against what this server
+     * supports, and return the ones in use for this session
+     */
+    protected int acceptCapabilities(int offered) {
+        int accepted = 0;
+        PayloadCompressor available = context.getCompressor();
+        if (available != null && Capabilities.has(offered, Capabilities.DEFLATE)) {
+            accepted |= Capabilities.DEFLATE;
+            compressor = available;
+        }
+        return accepted;
+    }
+
+    /**
+     * Restore identity and a fresh session key from a resumption ticket and
+     * answer the client. Returns false if the ticket was refused, in which case
+     * the client continues with the full handshake.
+     */
+    protected boolean resumeSession(ResumeRequest request) throws GeneralSecurityException {
+        SessionTickets tickets = context.getTickets();
+        byte[] serverNonce = tickets.newNonce();
+        SessionTickets.Resumed restored = tickets.redeem(request, serverNonce);
+        if (restored != null) {
+            // The account may have been deactivated since the ticket was issued
+            UserManager.UserInfo userInfo = userManager.getUserInfo(restored.getUsername());
+            if (userInfo == null || !userInfo.isActive()) {
+                restored = null;
+            }
+        }
+        if (restored == null) {
+            tickets.recordRejectedTicket();
+            sendRaw(new ResumeResponse(false, null, 0));
+            LoggerUtil.log("Session ticket refused, falling back to full handshake");
+            return false;
+        }
+
+        username = restored.getUsername();
+        setSessionKey(restored.getSessionKey());
+        resumed = true;
+        sendRaw(new ResumeResponse(true, serverNonce, acceptCapabilities(request.getCapabilities())));
+        LoggerUtil.log("Session resumed for user: " + username);
+        return true;
+    }
+
+    /**
+     * Answer a client that opened with its X25519 hello with ours, and key
+     * the session; no server key pair is involved
+     */
+    protected void acceptKeyAgreement(KeyAgreementHello clientHello) throws GeneralSecurityException {
+        X25519Handshake handshake = new X25519Handshake();
+        sendRaw(handshake.getHello(acceptCapabilities(clientHello.getCapabilities())));
+        setSessionKey(handshake.deriveSessionKey(clientHello, false));
+        LoggerUtil.log("Key exchange completed successfully (X25519)");
+    }
+
+    /**
+     * Send the client this connection's server public key with a fresh nonce
+     */
+    protected void sendServerKey(KeyPair serverKeys) {
+        byte[] nonce = new byte[32];
+        new SecureRandom().nextBytes(nonce);
+        serverKeyNonce = nonce;
+        sendRaw(new ServerKey(serverKeys.getPublic(), nonce));
+    }
+
+    /**
+     * Answer a pipelined login with our X25519 hello and the login result,
+     * queued back to back so they go out in one flight. Returns false if the
+     * client's proof or sealed credentials are invalid and the connection
+     * should be dropped. On AUTH_SUCCESS the client's E2EE key is kept in
+     * pipelinedPublicKey; on AUTH_FAILED the session is keyed and the caller
+     * continues with the step-by-step login, starting with AUTH_REQUEST.
+     */
+    protected boolean acceptPipelinedLogin(PipelinedLogin login, KeyPair serverKeys) throws Exception {
+        PipelinedHandshake.Credentials credentials;
+        try {
+            credentials = PipelinedHandshake.open(login, serverKeys, serverKeyNonce);
+        } catch (GeneralSecurityException e) {
+            LoggerUtil.log("Pipelined login rejected: " + e.getMessage());
+            return false;
+        }
+        // Check the credentials first so the hello and the result are queued back to back
+        String requestedUsername = credentials.getUsername();
+        String failure = null;
+        if (credentials.isRegistration()) {
+            if (userManager.registerUser(requestedUsername, credentials.getPassword())) {
+                LoggerUtil.log("User registration successful: " + requestedUsername);
+            } else {
+                failure = "AUTH_FAILED:Registration failed - username may already exist or password too weak";
+                LoggerUtil.log("Registration failed for username: " + requestedUsername);
+            }
+        } else {
+            if (userManager.authenticateUser(requestedUsername, credentials.getPassword())) {
+                LoggerUtil.log("User login successful: " + requestedUsername);
+            } else {
+                failure = "AUTH_FAILED:Invalid credentials";
+                LoggerUtil.log("Login failed for username: " + requestedUsername);
+            }
+        }
+
+        X25519Handshake handshake = new X25519Handshake();
+        KeyAgreementHello clientHello = login.getHello();
+        sendRaw(handshake.getHello(acceptCapabilities(clientHello.getCapabilities())));
+        setSessionKey(handshake.deriveSessionKey(clientHello, false));
+        LoggerUtil.log("Key exchange completed successfully (X25519, pipelined)");
+        if (failure != null) {
+            sendEncryptedMessage(failure);
+            return true;
+        }
+        username = requestedUsername;
+        pipelinedPublicKey = login.getE2eePublicKey();
+        sendEncryptedMessage("AUTH_SUCCESS");
+        return true;
+    }
+
+    /**
+     * Queue a handshake object that goes on the wire unencrypted
+     */
+    protected void sendRaw(Object frame) {
+        queueFrame(new OutboundQueue.Frame(frame, true, false));
+    }
+
+    private void queueFrame(OutboundQueue.Frame frame) {
+        if (outbound.offer(frame)) {
+            onFrameQueued();
+        } else {
+            LoggerUtil.log("Disconnecting slow client " + username + ": outbound queue stalled over high-water mark");
+            disconnect();
+        }
+    }
+
+    /**
+     * Encrypt (unless raw) and write one queued frame; used by the writer.
+     * Encrypted frames arrive already encoded, often shared by a whole
+     * broadcast, so only the encryption is done per recipient; compression,
+     * where negotiated, is done once per message.
+     */
+    protected void writeQueued(OutboundQueue.Frame frame) throws Exception {
+        if (frame.raw) {
+            writeEncodedFrame(ByteBuffer.wrap(WireProtocol.encodeFrame(frame.payload)));
+            return;
+        }
+        byte[] plaintext = ((EncodedMessage) frame.payload).forSession(compressor);
+        ByteBuffer encoded = buffers.acquire(WireProtocol.encryptedFrameLength(plaintext.length));
+        try {
+            WireProtocol.encodeEncryptedFrame(crypto, plaintext, encoded);
+            encoded.flip();
+        } catch (Exception e) {
+            buffers.release(encoded);
+            throw e;
+        }
+        writeEncodedFrame(encoded);
+    }
+
+    protected void setSessionKey(SecretKey sessionKey) throws GeneralSecurityException {
+        crypto = new SessionCipher(sessionKey, false);
+    }
+
+    /**
+     * Decrypt and decode one encrypted frame body from the client, using a
+     * pooled buffer for the plaintext. The caller still owns the frame.
+     */
+    protected Object decryptFrame(ByteBuffer frame) throws Exception {
+        ByteBuffer ciphertext = WireProtocol.encryptedPayload(frame);
+        if (ciphertext.remaining() < SessionCipher.TAG_LENGTH) {
+            throw new StreamCorruptedException("Encrypted frame shorter than its tag");
+        }
+        ByteBuffer plaintext = buffers.acquire(SessionCipher.plaintextLength(ciphertext.remaining()));
+        try {
+            crypto.decrypt(ciphertext, plaintext);
+            plaintext.flip();
+            return WireProtocol.decode(plaintext);
+        } finally {
+            buffers.release(plaintext);
+        }
+    }
+
+    /**
+     * Store the client's E2EE public key and share it with everyone online
+     */
+    protected void publishClientPublicKey(byte[] pubKeyBytes) throws Exception {
+        X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(pubKeyBytes);
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        PublicKey pubKey = keyFactory.generatePublic(pubKeySpec);
+        publicKeys.put(username, pubKey);
+        // Send all public keys to this client
+        sendAllPublicKeys();
+        // Notify all other clients of the new/updated public key
+        broadcastPublicKey(username, pubKey);
+    }
+
+    private void sendAllPublicKeys() throws Exception {
+        Map<String, byte[]> pubKeyMap = new HashMap<>();
+        for (Map.Entry<String, PublicKey> entry : publicKeys.entrySet()) {
+            pubKeyMap.put(entry.getKey(), entry.getValue().getEncoded());
+        }
+        sendEncryptedMessage(pubKeyMap);
+    }
+
+    private void broadcastPublicKey(String user, PublicKey pubKey) throws Exception {
+        Map<String, byte[]> singleKey = new HashMap<>();
+        singleKey.put(user, pubKey.getEncoded());
+        EncodedMessage encoded = EncodedMessage.of(singleKey);
+        sessions.forEachSession(client -> {
+            if (client != this) {
+                client.queueFrame(new OutboundQueue.Frame(encoded, false, false));
+            }
+        });
+    }
+
+    private void sendPrivate(Message msg) throws Exception {
+        long start = System.nanoTime();
+        DeliveryEvent event = new DeliveryEvent();
+        event.begin();
+        // Every session the recipient has open gets the message
+        List<ChatSession> recipients = sessions.getSessions(msg.getTo());
+        if (!recipients.isEmpty()) {
+            EncodedMessage encoded = EncodedMessage.of(msg);
+            for (ChatSession client : recipients) {
+                client.deliver(encoded);
+            }
+            PRIVATE_TIME.recordSince(start);
+            recordDelivery(event, "private", msg.getTo(), recipients.size(), encoded);
+        }
+        // Do NOT send a copy to the sender
+        if (recipients.isEmpty()) {
+            PRIVATE_UNDELIVERABLE.increment();
+            sendSystemMessage("User '" + msg.getTo() + "' not found or not online.");
+        }
+    }
+
+    private void broadcast(Message msg) throws Exception {
+        long start = System.nanoTime();
+        DeliveryEvent event = new DeliveryEvent();
+        event.begin();
+        // Encode once; each recipient's writer only encrypts the shared bytes
+        EncodedMessage encoded = EncodedMessage.of(msg);
+        int recipients = 1;
+        for (ChatSession client : clients) {
+            if (client != this && client.isAuthenticated) {
+                client.deliver(encoded);
+                recipients++;
+            }
+        }
+        // Optionally, send a copy to the sender
+        deliver(encoded);
+        BROADCAST_TIME.recordSince(start);
+        BROADCAST_FANOUT.record(recipients);
+        recordDelivery(event, "broadcast", null, recipients, encoded);
+    }
+
+    /**
+     * Commit a delivery event if Flight Recorder wants it; fields are only
+     * filled in then, so a disabled event costs nothing beyond its timing
+     */
+    private void recordDelivery(DeliveryEvent event, String kind, String recipient, int recipients,
+                                EncodedMessage encoded) {
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.sender = username;
+            event.recipient = recipient;
+            event.recipients = recipients;
+            event.payloadBytes = encoded.size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Commit a handshake phase event if Flight Recorder wants it
+     */
+    protected void recordPhase(HandshakeEvent event, String phase, boolean succeeded) {
+        if (event.shouldCommit()) {
+            event.phase = phase;
+            event.username = username;
+            event.clientAddress = getClientAddress();
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    protected void broadcastSystemMessage(String message) throws Exception {
+        EncodedMessage encoded = EncodedMessage.of(new Message("SYSTEM", null, message));
+        for (ChatSession client : clients) {
+            if (client.isAuthenticated) {
+                client.queueFrame(new OutboundQueue.Frame(encoded, false, false));
+            }
+        }
+    }
+
+    protected void sendSystemMessage(String message) throws Exception {
+        Message systemMsg = new Message("SYSTEM", null, message);
+        sendMessage(systemMsg);
+    }
+
+    private void sendMessage(Message msg) throws Exception {
+        queueFrame(new OutboundQueue.Frame(EncodedMessage.of(msg), false, false));
+    }
+
+    /**
+     * Queue a user's encoded chat message; these may be dropped for a slow client
+     */
+    private void deliver(EncodedMessage encodedMessage) {
+        queueFrame(new OutboundQueue.Frame(encodedMessage, false, true));
+    }
+
+    /**
+     * Mark the session authenticated and announce it to the room
+     */
+    protected void joinChat() throws Exception {
+        HANDSHAKE_TIME.recordSince(connectedAt);
+        isAuthenticated = true;
+        sessions.register(username, this);
+
+        // Send welcome message
+        sendSystemMessage("Welcome to the secure chat, " + username + "!");
+        broadcastSystemMessage(username + " has joined the chat.");
+
+        // Hand out a ticket so the next connection can skip the handshake
+        SessionTickets tickets = context.getTickets();
+        if (resumed) {
+            tickets.recordResumedHandshake();
+        } else {
+            tickets.recordFullHandshake();
+        }
+        SessionTicket ticket = tickets.issue(username);
+        if (ticket != null) {
+            sendEncryptedMessage(ticket);
+        }
+    }
+
+    /**
+     * Remove the session from the room and tell the others it has gone
+     */
+    protected void leaveChat() {
+        clients.remove(this);
+        if (!isAuthenticated) {
+            HANDSHAKE_FAILURES.increment();
+        }
+        if (username != null && isAuthenticated) {
+            sessions.unregister(username, this);
+            try {
+                broadcastSystemMessage(username + " has left the chat.");
+            } catch (Exception e) {
+                // Ignore cleanup errors
+            }
+            LoggerUtil.log("User " + username + " disconnected");
+        }
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public boolean isAuthenticated() {
+        return isAuthenticated;
+    }
+
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+}
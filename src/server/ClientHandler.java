@@ -2,71 +2,87 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
 import common.*;
-import java.security.spec.X509EncodedKeySpec;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler extends ChatSession implements Runnable {
+    private static volatile int socketBufferSize = FrameOutputStream.DEFAULT_BUFFER_SIZE;
+    private static volatile long coalesceMicros = 100;
+
     private Socket socket;
-    private List<ClientHandler> clients;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
-    private SecretKey aesKey;
-    private String username;
-    private UserManager userManager;
-    private boolean isAuthenticated = false;
-
-    // Static map to store username -> public key
-    private static final Map<String, PublicKey> publicKeys = new HashMap<>();
-
-    public ClientHandler(Socket socket, List<ClientHandler> clients, UserManager userManager) {
+    private FrameOutputStream out;
+    private FrameInputStream in;
+    private final Executor writerThreads;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    private boolean writerStarted = false;
+    private boolean pipelinedLogin = false;
+
+    /**
+     * Set the socket buffer size and how long a busy writer waits for more
+     * frames before flushing; called once at startup
+     */
+    public static void configureTransport(int bufferSize, long coalesceWindowMicros) {
+        socketBufferSize = bufferSize;
+        coalesceMicros = coalesceWindowMicros;
+    }
+
+    /**
+     * @param writerThreads runs this client's writer; null for a new platform thread
+     */
+    public ClientHandler(Socket socket, ServerContext context, Executor writerThreads) {
+        super(context);
         this.socket = socket;
-        this.clients = clients;
-        this.userManager = userManager;
+        this.writerThreads = writerThreads;
     }
 
     @Override
     public void run() {
         try {
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            out = new FrameOutputStream(socket.getOutputStream(), socketBufferSize);
+            in = new FrameInputStream(socket.getInputStream(), socketBufferSize);
+            startWriter();
 
             LoggerUtil.log("Client connected from: " + socket.getInetAddress());
 
             // 1. Key exchange
-            if (!performKeyExchange()) {
+            if (!timedPhase(this::performKeyExchange, KEY_EXCHANGE_TIME, "key exchange")) {
                 LoggerUtil.log("Key exchange failed for client: " + socket.getInetAddress());
                 return;
             }
 
-            // 2. RSA-based authentication (optional - for additional security)
-            if (!performRSAAuthentication()) {
-                LoggerUtil.log("RSA authentication failed for client: " + socket.getInetAddress());
-                return;
-            }
+            // A resumed session already knows who the client is, and a pipelined
+            // login has already proven the client's key
+            if (pipelinedLogin) {
+                if (pipelinedPublicKey == null
+                        && !timedPhase(this::performUserAuthentication, USER_AUTH_TIME, "user authentication")) {
+                    LoggerUtil.log("User authentication failed for client: " + socket.getInetAddress());
+                    return;
+                }
+            } else if (!resumed) {
+                // 2. RSA-based authentication (optional - for additional security)
+                if (!timedPhase(this::performRSAAuthentication, RSA_AUTH_TIME, "RSA authentication")) {
+                    LoggerUtil.log("RSA authentication failed for client: " + socket.getInetAddress());
+                    return;
+                }
 
-            // 3. Username/Password authentication
-            if (!performUserAuthentication()) {
-                LoggerUtil.log("User authentication failed for client: " + socket.getInetAddress());
-                return;
+                // 3. Username/Password authentication
+                if (!timedPhase(this::performUserAuthentication, USER_AUTH_TIME, "user authentication")) {
+                    LoggerUtil.log("User authentication failed for client: " + socket.getInetAddress());
+                    return;
+                }
             }
 
-            // 4. Receive client's public key for E2EE
-            receiveAndStoreClientPublicKey();
-            // 5. Send all public keys to this client
-            sendAllPublicKeys();
-            // 6. Notify all other clients of the new/updated public key
-            broadcastPublicKey(username, publicKeys.get(username));
+            // 4. Receive client's public key for E2EE, 5. send all public keys to this client
+            // and 6. notify all other clients of the new/updated public key
+            publishClientPublicKey(pipelinedPublicKey != null ? pipelinedPublicKey : (byte[]) decryptMessage());
 
             LoggerUtil.log("Client fully authenticated: " + username + " from " + socket.getInetAddress());
-            isAuthenticated = true;
-
-            // Send welcome message
-            sendSystemMessage("Welcome to the secure chat, " + username + "!");
-            broadcastSystemMessage(username + " has joined the chat.");
+            joinChat();
 
             // 7. Chat loop
             chatLoop();
@@ -78,22 +94,67 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    private interface Phase {
+        boolean run() throws Exception;
+    }
+
+    /**
+     * Run one handshake phase, recording its time in the histogram and, when
+     * Flight Recorder is on, as an event; a phase that throws counts as failed
+     */
+    private boolean timedPhase(Phase phase, Histogram histogram, String name) throws Exception {
+        long start = System.nanoTime();
+        HandshakeEvent event = new HandshakeEvent();
+        event.begin();
+        boolean succeeded = false;
+        try {
+            succeeded = phase.run();
+            return succeeded;
+        } finally {
+            histogram.recordSince(start);
+            recordPhase(event, name, succeeded);
+        }
+    }
+
     private boolean performKeyExchange() throws Exception {
-        // Generate RSA key pair for this session
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-        kpg.initialize(2048);
-        KeyPair kp = kpg.generateKeyPair();
+        // The client opens with a resumption ticket, its X25519 hello or a request
+        // for our key; only the last needs a key pair. After a refused ticket
+        // the client opens again with one of the other two.
+        Object opening = in.readFrame();
+        if (opening instanceof ResumeRequest) {
+            if (resumeSession((ResumeRequest) opening)) {
+                return true;
+            }
+            opening = in.readFrame();
+        }
+        if (opening instanceof KeyAgreementHello) {
+            acceptKeyAgreement((KeyAgreementHello) opening);
+            return true;
+        }
+        if (!(opening instanceof KeyRequest)) {
+            LoggerUtil.log("Unexpected opening frame from client: " + socket.getInetAddress());
+            return false;
+        }
+
+        // Get this session's RSA key pair (generated, pooled or long-term)
+        KeyPair kp = context.getKeyPairs().nextKeyPair();
 
         // Send public key to client
-        out.writeObject(kp.getPublic());
+        sendServerKey(kp);
+
+        // Receive a pipelined login or an AES key encrypted with our public key
+        Object reply = in.readFrame();
+        if (reply instanceof PipelinedLogin) {
+            pipelinedLogin = true;
+            return acceptPipelinedLogin((PipelinedLogin) reply, kp);
+        }
 
-        // Receive AES key encrypted with our public key
-        byte[] encryptedAESKey = (byte[]) in.readObject();
+        byte[] encryptedAESKey = (byte[]) reply;
         Cipher rsaCipher = Cipher.getInstance("RSA");
         rsaCipher.init(Cipher.DECRYPT_MODE, kp.getPrivate());
         byte[] aesKeyBytes = rsaCipher.doFinal(encryptedAESKey);
 
-        aesKey = new SecretKeySpec(aesKeyBytes, "AES");
+        setSessionKey(new SecretKeySpec(aesKeyBytes, "AES"));
         LoggerUtil.log("Key exchange completed successfully");
         return true;
     }
@@ -101,15 +162,15 @@ public class ClientHandler implements Runnable {
     private boolean performRSAAuthentication() throws Exception {
         // Optional RSA authentication step (can be skipped if only using username/password)
         try {
-            PublicKey clientPublicKey = (PublicKey) in.readObject();
+            PublicKey clientPublicKey = (PublicKey) in.readFrame();
 
             // Send challenge
             byte[] challenge = new byte[32];
             new SecureRandom().nextBytes(challenge);
-            out.writeObject(challenge);
+            sendRaw(challenge);
 
             // Receive signature
-            byte[] signature = (byte[]) in.readObject();
+            byte[] signature = (byte[]) in.readFrame();
 
             // Verify signature
             Signature sig = Signature.getInstance("SHA256withRSA");
@@ -207,169 +268,102 @@ public class ClientHandler implements Runnable {
 
     private void chatLoop() throws Exception {
         while (true) {
-            Object receivedData = decryptMessage();
-            
-            if (receivedData instanceof Message) {
-                Message msg = (Message) receivedData;
-                // LoggerUtil.log("Message from " + username + ": " + msg.getContent()); // Do not log plaintext for E2EE
-                if (msg.getTo() != null && !msg.getTo().trim().isEmpty()) {
-                    sendPrivate(msg);
-                } else {
-                    broadcast(msg);
-                }
-            } else if (receivedData instanceof String) {
-                String command = (String) receivedData;
-                handleCommand(command);
-            }
-        }
-    }
-
-    private void handleCommand(String command) throws Exception {
-        String[] parts = command.split(":", 2);
-        String cmd = parts[0];
-
-        switch (cmd) {
-            case "CHANGE_PASSWORD":
-                if (parts.length == 2) {
-                    String[] passwords = parts[1].split("\\|", 2);
-                    if (passwords.length == 2) {
-                        String oldPassword = passwords[0];
-                        String newPassword = passwords[1];
-                        
-                        if (userManager.changePassword(username, oldPassword, newPassword)) {
-                            sendEncryptedMessage("PASSWORD_CHANGED:Password changed successfully");
-                            LoggerUtil.log("Password changed for user: " + username);
-                        } else {
-                            sendEncryptedMessage("PASSWORD_ERROR:Failed to change password");
-                        }
-                    }
-                }
-                break;
-                
-            case "USER_INFO":
-                UserManager.UserInfo userInfo = userManager.getUserInfo(username);
-                if (userInfo != null) {
-                    String info = String.format("USER_INFO:Username: %s, Created: %s, Last Login: %s, Active: %s",
-                            userInfo.getUsername(),
-                            new Date(userInfo.getCreatedDate()),
-                            userInfo.getLastLoginDate() > 0 ? new Date(userInfo.getLastLoginDate()) : "Never",
-                            userInfo.isActive() ? "Yes" : "No");
-                    sendEncryptedMessage(info);
-                }
-                break;
-
-            case "QUIT":
-                LoggerUtil.log("User " + username + " disconnected gracefully");
-                return;
-
-            default:
-                sendEncryptedMessage("UNKNOWN_COMMAND:Command not recognized");
+            dispatch(decryptMessage());
         }
     }
 
-    private void sendEncryptedMessage(String message) throws Exception {
-        byte[] encrypted = AESUtil.encryptObject((Serializable) message, aesKey);
-        out.writeObject(encrypted);
-    }
-
-    private void sendEncryptedMessage(Map<String, byte[]> pubKeyMap) throws Exception {
-        byte[] encrypted = AESUtil.encryptObject((Serializable) pubKeyMap, aesKey);
-        out.writeObject(encrypted);
-    }
-
-    private Object decryptMessage() throws Exception {
-        byte[] encrypted = (byte[]) in.readObject();
-        return AESUtil.decryptObject(encrypted, aesKey);
-    }
-
-    private void receiveAndStoreClientPublicKey() throws Exception {
-        // Receive public key bytes from client
-        byte[] pubKeyBytes = (byte[]) decryptMessage();
-        X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(pubKeyBytes);
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        PublicKey pubKey = keyFactory.generatePublic(pubKeySpec);
-        synchronized (publicKeys) {
-            publicKeys.put(username, pubKey);
+    private void startWriter() {
+        writerStarted = true;
+        if (writerThreads != null) {
+            writerThreads.execute(this::writerLoop);
+        } else {
+            Thread writerThread = new Thread(this::writerLoop);
+            writerThread.setName("ClientWriter-" + socket.getInetAddress().getHostAddress());
+            writerThread.setDaemon(true);
+            writerThread.start();
         }
     }
 
-    private void sendAllPublicKeys() throws Exception {
-        Map<String, byte[]> pubKeyMap = new HashMap<>();
-        synchronized (publicKeys) {
-            for (Map.Entry<String, PublicKey> entry : publicKeys.entrySet()) {
-                pubKeyMap.put(entry.getKey(), entry.getValue().getEncoded());
+    /**
+     * Drains the outbound queue; the only thread that writes to the socket.
+     * Frames are buffered and flushed together once the queue runs dry. If
+     * more than one frame went out in this batch the client is busy, so the
+     * writer lingers once for the coalescing window to catch the next frames
+     * in the same write; a lone frame is flushed at once.
+     */
+    private void writerLoop() {
+        try {
+            OutboundQueue.Frame frame = outbound.take(true);
+            while (frame != null) {
+                int batched = 0;
+                boolean lingered = false;
+                while (frame != null) {
+                    writeQueued(frame);
+                    batched++;
+                    frame = outbound.take(false);
+                    if (frame == null && batched > 1 && !lingered && coalesceMicros > 0) {
+                        lingered = true;
+                        frame = outbound.poll(coalesceMicros, TimeUnit.MICROSECONDS);
+                    }
+                }
+                out.flush();
+                frame = outbound.take(true);
             }
+        } catch (Exception e) {
+            LoggerUtil.log("Client writer error: " + e.getMessage());
+            disconnect();
+        } finally {
+            writerDone.countDown();
         }
-        sendEncryptedMessage(pubKeyMap);
     }
 
-    private void broadcastPublicKey(String user, PublicKey pubKey) throws Exception {
-        for (ClientHandler client : clients) {
-            if (client != this && client.isAuthenticated) {
-                client.sendSinglePublicKey(user, pubKey);
-            }
+    @Override
+    protected void writeEncodedFrame(ByteBuffer frame) throws Exception {
+        try {
+            out.writeEncodedFrame(frame);
+        } finally {
+            buffers.release(frame);
         }
     }
 
-    private void sendSinglePublicKey(String user, PublicKey pubKey) throws Exception {
-        Map<String, byte[]> singleKey = new HashMap<>();
-        singleKey.put(user, pubKey.getEncoded());
-        sendEncryptedMessage(singleKey);
+    @Override
+    protected void onFrameQueued() {
+        // The writer thread is already waiting on the queue
     }
 
-    private void sendPrivate(Message msg) throws Exception {
-        boolean found = false;
-        for (ClientHandler client : clients) {
-            if (client.isAuthenticated && client.getUsername() != null && client.getUsername().equalsIgnoreCase(msg.getTo())) {
-                client.sendMessage(msg);
-                found = true;
-                break;
-            }
-        }
-        // Do NOT send a copy to the sender
-        if (!found) {
-            sendSystemMessage("User '" + msg.getTo() + "' not found or not online.");
-        }
+    @Override
+    protected String getClientAddress() {
+        return socket.getInetAddress().getHostAddress();
     }
 
-    private void broadcast(Message msg) throws Exception {
-        for (ClientHandler client : clients) {
-            if (client != this && client.isAuthenticated) {
-                client.sendMessage(msg);
-            }
+    @Override
+    protected void disconnect() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
         }
-        // Optionally, send a copy to the sender
-        sendMessage(msg);
     }
 
-    private void broadcastSystemMessage(String message) throws Exception {
-        Message systemMsg = new Message("SYSTEM", null, message);
-        for (ClientHandler client : clients) {
-            if (client.isAuthenticated) {
-                client.sendMessage(systemMsg);
-            }
+    private Object decryptMessage() throws Exception {
+        ByteBuffer frame = in.readFrame(buffers);
+        try {
+            return decryptFrame(frame);
+        } finally {
+            buffers.release(frame);
         }
     }
 
-    private void sendSystemMessage(String message) throws Exception {
-        Message systemMsg = new Message("SYSTEM", null, message);
-        sendMessage(systemMsg);
-    }
-
-    private void sendMessage(Message msg) throws Exception {
-        byte[] encrypted = AESUtil.encryptObject((Serializable) msg, aesKey);
-        out.writeObject(encrypted);
-    }
-
     private void cleanup() {
-        clients.remove(this);
-        if (username != null && isAuthenticated) {
-            try {
-                broadcastSystemMessage(username + " has left the chat.");
-            } catch (Exception e) {
-                // Ignore cleanup errors
+        leaveChat();
+        // Let the writer send what is already queued, e.g. a final AUTH_FAILED
+        outbound.close();
+        try {
+            if (writerStarted) {
+                writerDone.await(2, TimeUnit.SECONDS);
             }
-            LoggerUtil.log("User " + username + " disconnected");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
         try {
             if (socket != null && !socket.isClosed()) {
@@ -379,12 +373,4 @@ public class ClientHandler implements Runnable {
             // Ignore cleanup errors
         }
     }
-
-    public String getUsername() {
-        return username;
-    }
-
-    public boolean isAuthenticated() {
-        return isAuthenticated;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every open connection, authenticated or not. Backed by a concurrent hash
+ * set, so connecting and disconnecting are O(1) and never copy the whole
+ * registry (a reconnect storm against a copy-on-write list is O(n^2)).
+ * Iteration is weakly consistent: a fan-out sees a snapshot-ish view that
+ * may or may not include sessions added or removed while it runs, and it
+ * never throws ConcurrentModificationException.
+ */
+public class ConnectionRegistry implements Iterable<ChatSession> {
+    private final Set<ChatSession> sessions = ConcurrentHashMap.newKeySet();
+
+    public void add(ChatSession session) {
+        sessions.add(session);
+    }
+
+    public void remove(ChatSession session) {
+        sessions.remove(session);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public Iterator<ChatSession> iterator() {
+        return sessions.iterator();
+    }
+}
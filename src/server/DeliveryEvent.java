@@ -0,0 +1,33 @@
+package server;
+
+import jdk.jfr.*;
+
+/**
+ * Flight Recorder event for one chat message queued for its recipients.
+ * Only deliveries over the threshold are recorded, 1 ms unless the
+ * recording sets another.
+ */
+@Name("chat.Delivery")
+@Label("Message Delivery")
+@Description("A broadcast or private message encoded and queued for every recipient session")
+@Category({"Secure Chat", "Delivery"})
+@Threshold("1 ms")
+@StackTrace(false)
+public class DeliveryEvent extends Event {
+    @Label("Kind")
+    String kind;
+
+    @Label("Sender")
+    String sender;
+
+    @Label("Recipient")
+    @Description("Null for a broadcast")
+    String recipient;
+
+    @Label("Recipient Sessions")
+    int recipients;
+
+    @Label("Payload Size")
+    @DataAmount
+    int payloadBytes;
+}
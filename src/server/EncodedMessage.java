@@ -0,0 +1,52 @@
+package server;
+
+import java.io.IOException;
+import common.PayloadCompressor;
+import common.WireProtocol;
+
+/**
+ * An encoded value on its way to one or more sessions. A broadcast shares a
+ * single instance, so the value is encoded once and, for sessions that
+ * negotiated compression, compressed at most once by whichever writer gets
+ * to it first.
+ */
+public class EncodedMessage {
+    private final byte[] plain;
+    // Null until first needed; the plain bytes themselves if compressing did not help
+    private volatile byte[] compressed;
+
+    private EncodedMessage(byte[] plain) {
+        this.plain = plain;
+    }
+
+    public static EncodedMessage of(Object value) throws IOException {
+        return new EncodedMessage(WireProtocol.encode(value));
+    }
+
+    /**
+     * Encoded size before any compression
+     */
+    public int size() {
+        return plain.length;
+    }
+
+    /**
+     * The bytes to encrypt for a session; compressed when the session uses a
+     * compressor and compressing makes the payload smaller
+     */
+    public byte[] forSession(PayloadCompressor compressor) {
+        if (compressor == null) {
+            return plain;
+        }
+        byte[] result = compressed;
+        if (result == null) {
+            // Racing writers may both compress; they produce the same bytes
+            result = compressor.compress(plain);
+            if (result == null) {
+                result = plain;
+            }
+            compressed = result;
+        }
+        return result;
+    }
+}
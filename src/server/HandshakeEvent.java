@@ -0,0 +1,26 @@
+package server;
+
+import jdk.jfr.*;
+
+/**
+ * Flight Recorder event for one handshake phase of one connection
+ */
+@Name("chat.Handshake")
+@Label("Handshake Phase")
+@Description("Key exchange, RSA authentication or user authentication of a client")
+@Category({"Secure Chat", "Handshake"})
+@StackTrace(false)
+public class HandshakeEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Username")
+    @Description("Null until the client has authenticated")
+    String username;
+
+    @Label("Client Address")
+    String clientAddress;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
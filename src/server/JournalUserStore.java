@@ -0,0 +1,114 @@
+package server;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import common.LoggerUtil;
+
+/**
+ * Every account on the heap, made durable by a {@link UserJournal}. Reads
+ * go straight to a concurrent map. A write updates the map and queues its
+ * journal record inside the map's per-key compute, so the two happen in the
+ * same order for any one account, while writes to different accounts run
+ * in parallel. A background task compacts the journal into a new snapshot
+ * once it grows past a threshold.
+ */
+class JournalUserStore extends UserStore {
+    private static final long COMPACTION_CHECK_SECONDS = 5;
+
+    private final ConcurrentHashMap<String, UserManager.UserData> users;
+    private final UserJournal journal;
+    // Shared by writers, taken exclusively to copy the map and rotate the journal at one point
+    private final ReentrantReadWriteLock compaction = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService compactor;
+
+    JournalUserStore(String snapshotFile, long compactThreshold) throws IOException {
+        journal = new UserJournal(snapshotFile, compactThreshold);
+        users = new ConcurrentHashMap<>(journal.open());
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "UserJournalCompactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded, COMPACTION_CHECK_SECONDS,
+                COMPACTION_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public UserManager.UserData get(String key) {
+        return users.get(key);
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, UserManager.UserData user) {
+        List<CompletableFuture<Void>> saved = new ArrayList<>(1);
+        compaction.readLock().lock();
+        try {
+            users.compute(key, (k, previous) -> {
+                saved.add(journal.append(user));
+                return user;
+            });
+        } finally {
+            compaction.readLock().unlock();
+        }
+        return saved.get(0);
+    }
+
+    @Override
+    public CompletableFuture<Void> remove(String key) {
+        List<CompletableFuture<Void>> saved = new ArrayList<>(1);
+        compaction.readLock().lock();
+        try {
+            users.compute(key, (k, previous) -> {
+                saved.add(journal.appendRemoval(k));
+                return null;
+            });
+        } finally {
+            compaction.readLock().unlock();
+        }
+        return saved.get(0);
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+    @Override
+    public String[] usernames() {
+        return users.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getWrites() { return journal.getRecordsWritten(); }
+
+    @Override
+    public long getSyncs() { return journal.getSyncs(); }
+
+    /**
+     * Snapshot the map once the journal is large enough. Writers only wait
+     * while the map is copied and the rotation marker queued; the copy is
+     * written out after they resume.
+     */
+    private void compactIfNeeded() {
+        if (!journal.needsCompaction()) {
+            return;
+        }
+        Map<String, UserManager.UserData> snapshot;
+        CompletableFuture<Void> rotated;
+        compaction.writeLock().lock();
+        try {
+            snapshot = new HashMap<>(users);
+            rotated = journal.rotate();
+        } finally {
+            compaction.writeLock().unlock();
+        }
+        try {
+            rotated.join();
+            journal.compact(snapshot);
+        } catch (Exception e) {
+            LoggerUtil.log("Error compacting user database: " + e.getMessage());
+        }
+    }
+}
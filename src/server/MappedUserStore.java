@@ -0,0 +1,566 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32C;
+import common.LoggerUtil;
+
+/**
+ * Accounts as fixed-size records in a memory-mapped file. The records are
+ * themselves an open-addressing hash table on the lower-case username, so
+ * a lookup probes a few adjacent slots and the operating system pages in
+ * only the slots that are touched. Opening the store maps the file and
+ * reads its header, whatever the number of accounts; the heap holds no
+ * accounts beyond those being looked at.
+ *
+ * Lookups take no lock: they read optimistically and retry under a read
+ * lock only if a write overlapped them. Writes are serialized, but only
+ * for the few microseconds it takes to fill a record.
+ *
+ * Each slot holds two copies of its record, each with a sequence number
+ * and a checksum. A change overwrites the older copy and leaves the newer
+ * one alone; reads use the valid copy with the higher sequence number. A
+ * write torn by a crash thus fails its checksum, and the account reads as
+ * it was before the change instead of, say, a new hash with the old salt.
+ * A syncer thread flushes the dirty slots' pages, grouping changes that
+ * arrive together the way the journal store groups fsyncs. A new slot's
+ * state byte is written last, so a crash mid-insert leaves an empty slot.
+ *
+ * A removed account's slot is marked removed rather than emptied, so
+ * probes for the keys after it still reach them; resizing drops it.
+ *
+ * The table doubles when it is 70% full, counting removed slots: every
+ * record is copied into a new file, which is synced and renamed over the
+ * old one.
+ */
+class MappedUserStore extends UserStore {
+    private static final int MAGIC = 0x43555352; // "CUSR"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4096;
+    private static final int SLOT_SIZE = 512;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // 1 GiB of slots per mapping; a mapping cannot exceed 2 GiB
+    private static final int CHUNK_SHIFT = 21;
+    private static final long CHUNK_BYTES = (long) SLOT_SIZE << CHUNK_SHIFT;
+    private static final double MAX_LOAD = 0.7;
+
+    // Header layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SLOT_SIZE = 8;
+    private static final int H_CAPACITY = 12;
+    private static final int H_COUNT = 16;
+    private static final int H_REMOVED = 20; // Zero in files from before removal existed
+
+    // Slot layout: fields that never change once the slot is taken, then two copies of the record
+    private static final int STATE = 0;
+    private static final int KEY_HASH = 4;
+    private static final int COPY_A = 16;
+    private static final int COPY_B = 264;
+    private static final int COPY_SIZE = 248;
+
+    // Record copy layout; the checksum covers the rest of the copy, and
+    // strings are a length byte followed by UTF-8 bytes
+    private static final int CHECKSUM = 0;
+    private static final int SEQUENCE = 4;
+    private static final int CREATED = 8;
+    private static final int LAST_LOGIN = 16;
+    private static final int ITERATIONS = 24;
+    private static final int ACTIVE = 28;
+    private static final int USERNAME = 32;
+    private static final int HASH = 96;
+    private static final int SALT = 152;
+    private static final int ALGORITHM = 208;
+    private static final int USERNAME_FIELD = 64;
+    private static final int HASH_FIELD = 56;
+    private static final int SALT_FIELD = 56;
+    private static final int ALGORITHM_FIELD = 40;
+
+    // Version 1 had a single copy of each record in a 256-byte slot
+    private static final int V1_SLOT_SIZE = 256;
+    private static final int[] V1_FIELDS = {32, 96, 160, 224}; // Username, hash, salt, algorithm
+
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte REMOVED = 2;
+
+    private final Path file;
+    private final StampedLock lock = new StampedLock();
+    private final BlockingQueue<Pending> dirty = new LinkedBlockingQueue<>();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] chunks;
+    private int capacity;
+    private volatile int count;
+    private int removed;
+    // Bumped by each resize; dirty records from an older file were synced by the resize
+    private int generation;
+
+    private static class Pending {
+        final int slot;
+        final int generation;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(int slot, int generation) {
+            this.slot = slot;
+            this.generation = generation;
+        }
+    }
+
+    private MappedUserStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the store, creating it if needed. A new store imports the
+     * accounts of an existing journal database once.
+     */
+    static MappedUserStore open(String fileName, String importFrom) throws IOException {
+        MappedUserStore store = new MappedUserStore(Paths.get(fileName));
+        Files.deleteIfExists(store.resizeFile());
+        Map<String, UserManager.UserData> upgraded = null;
+        if (Files.exists(store.file) && readVersion(store.file) == 1) {
+            // Keep the old file until its accounts are safely in the new one
+            upgraded = readVersion1(store.file);
+            Files.move(store.file, Paths.get(fileName + ".v1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        boolean created = !Files.exists(store.file);
+        if (created) {
+            createFile(store.file, INITIAL_CAPACITY);
+        }
+        store.map();
+        LoggerUtil.log("Opened user store " + fileName + ": " + store.count + " users, "
+                + store.capacity + " slots");
+        Thread syncer = new Thread(store::syncLoop, "UserStoreSyncer");
+        syncer.setDaemon(true);
+        syncer.start();
+        if (upgraded != null) {
+            store.putAll(upgraded);
+            LoggerUtil.log("Upgraded " + upgraded.size() + " users from a version 1 user store; the old file is "
+                    + fileName + ".v1");
+        } else if (created && (Files.exists(Paths.get(importFrom))
+                || Files.exists(Paths.get(importFrom + ".journal")))) {
+            Map<String, UserManager.UserData> users = UserJournal.read(importFrom);
+            store.putAll(users);
+            LoggerUtil.log("Imported " + users.size() + " users from " + importFrom);
+        }
+        return store;
+    }
+
+    private void putAll(Map<String, UserManager.UserData> users) {
+        List<CompletableFuture<Void>> saved = new ArrayList<>();
+        for (Map.Entry<String, UserManager.UserData> entry : users.entrySet()) {
+            saved.add(put(entry.getKey(), entry.getValue()));
+        }
+        CompletableFuture.allOf(saved.toArray(CompletableFuture<?>[]::new)).join();
+    }
+
+    @Override
+    public UserManager.UserData get(String key) {
+        int keyHash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                UserManager.UserData user = lookup(key, keyHash);
+                if (lock.validate(stamp)) {
+                    return user;
+                }
+            } catch (RuntimeException e) {
+                // Read a record or table mid-change; validation would have failed
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return lookup(key, keyHash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, UserManager.UserData user) {
+        byte[] username = encodeField(user.getUsername(), USERNAME_FIELD, "Username");
+        byte[] hashedPassword = encodeField(user.getHashedPassword(), HASH_FIELD, "Password hash");
+        byte[] salt = encodeField(user.getSalt(), SALT_FIELD, "Salt");
+        byte[] algorithm = encodeField(user.getHashAlgorithm(), ALGORITHM_FIELD, "Hash algorithm");
+        int keyHash = hash(key);
+        Pending pending;
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(key, keyHash);
+            boolean inserted = slot < 0;
+            if (inserted) {
+                if (count + removed + 1 > capacity * MAX_LOAD) {
+                    resize(capacity * 2);
+                    // Every record has moved; find the free slot again
+                    slot = find(key, keyHash);
+                }
+                slot = -slot - 1;
+            }
+            ByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            // Overwrite the older copy; the current one stays intact until this one is complete
+            int current = inserted ? -1 : current(chunk, offset);
+            int copy = offset + (current == offset + COPY_A ? COPY_B : COPY_A);
+            chunk.putInt(copy + SEQUENCE, current < 0 ? 1 : chunk.getInt(current + SEQUENCE) + 1);
+            chunk.putLong(copy + CREATED, user.getCreatedDate());
+            chunk.putLong(copy + LAST_LOGIN, user.getLastLoginDate());
+            chunk.putInt(copy + ITERATIONS, user.getHashIterations());
+            chunk.put(copy + ACTIVE, user.isActive() ? (byte) 1 : 0);
+            putField(chunk, copy + USERNAME, username);
+            putField(chunk, copy + HASH, hashedPassword);
+            putField(chunk, copy + SALT, salt);
+            putField(chunk, copy + ALGORITHM, algorithm);
+            chunk.putInt(copy + CHECKSUM, checksum(chunk, copy));
+            if (inserted) {
+                chunk.putInt(offset + KEY_HASH, keyHash);
+                chunk.put(offset + STATE, USED);
+                header.putInt(H_COUNT, ++count);
+            }
+            pending = new Pending(slot, generation);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        writes.incrementAndGet();
+        dirty.add(pending);
+        return pending.done;
+    }
+
+    @Override
+    public CompletableFuture<Void> remove(String key) {
+        int keyHash = hash(key);
+        Pending pending;
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(key, keyHash);
+            if (slot < 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+            // One byte, so a crash leaves the account either there or gone
+            chunk(slot).put(offset(slot) + STATE, REMOVED);
+            header.putInt(H_COUNT, --count);
+            header.putInt(H_REMOVED, ++removed);
+            pending = new Pending(slot, generation);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        writes.incrementAndGet();
+        dirty.add(pending);
+        return pending.done;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Scans every slot; for admin use, not the login path
+     */
+    @Override
+    public String[] usernames() {
+        long stamp = lock.readLock();
+        try {
+            List<String> names = new ArrayList<>(count);
+            for (int slot = 0; slot < capacity; slot++) {
+                ByteBuffer chunk = chunk(slot);
+                int offset = offset(slot);
+                int current = chunk.get(offset + STATE) == USED ? current(chunk, offset) : -1;
+                if (current >= 0) {
+                    names.add(getField(chunk, current + USERNAME).toLowerCase());
+                }
+            }
+            return names.toArray(new String[0]);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long getWrites() { return writes.get(); }
+
+    @Override
+    public long getSyncs() { return syncs.get(); }
+
+    /**
+     * The slot holding the key, or -(free slot + 1) if it is absent.
+     * Linear probing; the table never fills, so under a lock the probe
+     * always ends. The bound is for optimistic reads racing a resize. A
+     * slot whose only copy was torn by a crash matches no key, nor does a
+     * removed one, though neither ends the probe.
+     */
+    private int find(String key, int keyHash) {
+        int mask = capacity - 1;
+        int probes = 0;
+        for (int slot = keyHash & mask; ; slot = (slot + 1) & mask) {
+            if (++probes > mask + 1) {
+                throw new IllegalStateException("User store table changed during lookup");
+            }
+            ByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            byte state = chunk.get(offset + STATE);
+            if (state == EMPTY) {
+                return -slot - 1;
+            }
+            if (state == USED && chunk.getInt(offset + KEY_HASH) == keyHash) {
+                int current = current(chunk, offset);
+                if (current >= 0 && getField(chunk, current + USERNAME).toLowerCase().equals(key)) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    private UserManager.UserData lookup(String key, int keyHash) {
+        int slot = find(key, keyHash);
+        return slot < 0 ? null : read(slot);
+    }
+
+    private UserManager.UserData read(int slot) {
+        ByteBuffer chunk = chunk(slot);
+        int copy = current(chunk, offset(slot));
+        return UserManager.UserData.restore(getField(chunk, copy + USERNAME), getField(chunk, copy + HASH),
+                getField(chunk, copy + SALT), getField(chunk, copy + ALGORITHM),
+                chunk.getInt(copy + ITERATIONS), chunk.getLong(copy + CREATED),
+                chunk.getLong(copy + LAST_LOGIN), chunk.get(copy + ACTIVE) != 0);
+    }
+
+    /**
+     * Offset of the slot's newest copy that passes its checksum, or -1 if
+     * neither does
+     */
+    private static int current(ByteBuffer chunk, int offset) {
+        int a = offset + COPY_A;
+        int b = offset + COPY_B;
+        boolean aValid = chunk.getInt(a + CHECKSUM) == checksum(chunk, a);
+        boolean bValid = chunk.getInt(b + CHECKSUM) == checksum(chunk, b);
+        if (aValid && bValid) {
+            // Compared by difference, so the sequence may wrap
+            return chunk.getInt(b + SEQUENCE) - chunk.getInt(a + SEQUENCE) > 0 ? b : a;
+        }
+        return aValid ? a : bValid ? b : -1;
+    }
+
+    private static int checksum(ByteBuffer chunk, int copy) {
+        CRC32C crc = new CRC32C();
+        crc.update(chunk.slice(copy + SEQUENCE, COPY_SIZE - SEQUENCE));
+        return (int) crc.getValue();
+    }
+
+    private MappedByteBuffer chunk(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT];
+    }
+
+    private static int offset(int slot) {
+        return (slot & ((1 << CHUNK_SHIFT) - 1)) * SLOT_SIZE;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static byte[] encodeField(String value, int fieldSize, String name) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > fieldSize - 1) {
+            throw new IllegalArgumentException(name + " longer than " + (fieldSize - 1) + " bytes");
+        }
+        return bytes;
+    }
+
+    private static void putField(ByteBuffer chunk, int offset, byte[] bytes) {
+        chunk.put(offset, (byte) bytes.length);
+        chunk.put(offset + 1, bytes);
+    }
+
+    private static String getField(ByteBuffer chunk, int offset) {
+        byte[] bytes = new byte[chunk.get(offset) & 0xff];
+        chunk.get(offset + 1, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Path resizeFile() {
+        return Paths.get(file + ".resize");
+    }
+
+    /**
+     * A sparse file: slots take no disk space until written
+     */
+    private static void createFile(Path path, int capacity) throws IOException {
+        try (FileChannel created = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer fields = ByteBuffer.allocate(20);
+            fields.putInt(H_MAGIC, MAGIC).putInt(H_VERSION, VERSION).putInt(H_SLOT_SIZE, SLOT_SIZE)
+                    .putInt(H_CAPACITY, capacity).putInt(H_COUNT, 0);
+            created.write(fields, 0);
+            created.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) capacity * SLOT_SIZE - 1);
+            created.force(true);
+        }
+    }
+
+    private void map() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION
+                || header.getInt(H_SLOT_SIZE) != SLOT_SIZE) {
+            throw new IOException("Not a version " + VERSION + " user store: " + file);
+        }
+        capacity = header.getInt(H_CAPACITY);
+        count = header.getInt(H_COUNT);
+        removed = header.getInt(H_REMOVED);
+        if (Integer.bitCount(capacity) != 1 || channel.size() < HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+            throw new IOException("Damaged user store header: " + file);
+        }
+        long recordBytes = (long) capacity * SLOT_SIZE;
+        chunks = new MappedByteBuffer[(int) ((recordBytes + CHUNK_BYTES - 1) / CHUNK_BYTES)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = i * CHUNK_BYTES;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + start,
+                    Math.min(CHUNK_BYTES, recordBytes - start));
+        }
+    }
+
+    private static int readVersion(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer fields = ByteBuffer.allocate(8);
+            in.read(fields, 0);
+            if (fields.getInt(H_MAGIC) != MAGIC) {
+                throw new IOException("Not a user store: " + path);
+            }
+            return fields.getInt(H_VERSION);
+        }
+    }
+
+    /**
+     * The accounts in a version 1 file, whose 256-byte slots held a single
+     * record with no checksum and wider string fields
+     */
+    private static Map<String, UserManager.UserData> readVersion1(Path path) throws IOException {
+        Map<String, UserManager.UserData> users = new HashMap<>();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(20);
+            in.read(header, 0);
+            int slots = header.getInt(H_CAPACITY);
+            ByteBuffer record = ByteBuffer.allocate(V1_SLOT_SIZE);
+            for (int slot = 0; slot < slots; slot++) {
+                record.clear();
+                in.read(record, HEADER_SIZE + (long) slot * V1_SLOT_SIZE);
+                if (record.get(STATE) != USED) {
+                    continue;
+                }
+                UserManager.UserData user = UserManager.UserData.restore(getField(record, V1_FIELDS[0]),
+                        getField(record, V1_FIELDS[1]), getField(record, V1_FIELDS[2]),
+                        getField(record, V1_FIELDS[3]), record.getInt(ITERATIONS), record.getLong(CREATED),
+                        record.getLong(LAST_LOGIN), record.get(ACTIVE) != 0);
+                users.put(user.getUsername().toLowerCase(), user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Rehash every record into a file of the new capacity. Called with the
+     * write lock held; slots are copied as raw bytes, except those a crash
+     * left without a valid copy, which are dropped.
+     */
+    private void resize(int newCapacity) {
+        long start = System.nanoTime();
+        Path resized = resizeFile();
+        try {
+            createFile(resized, newCapacity);
+            MappedUserStore target = new MappedUserStore(resized);
+            target.map();
+            int mask = newCapacity - 1;
+            int copied = 0;
+            for (int slot = 0; slot < capacity; slot++) {
+                ByteBuffer chunk = chunk(slot);
+                int offset = offset(slot);
+                if (chunk.get(offset + STATE) != USED || current(chunk, offset) < 0) {
+                    continue;
+                }
+                int newSlot = chunk.getInt(offset + KEY_HASH) & mask;
+                while (target.chunk(newSlot).get(offset(newSlot) + STATE) != EMPTY) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                target.chunk(newSlot).put(offset(newSlot), chunk, offset, SLOT_SIZE);
+                copied++;
+            }
+            count = copied;
+            removed = 0;
+            target.header.putInt(H_COUNT, count);
+            for (MappedByteBuffer targetChunk : target.chunks) {
+                targetChunk.force();
+            }
+            target.header.force();
+            target.channel.close();
+            channel.close();
+            Files.move(resized, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            map();
+            generation++;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot resize user store " + file, e);
+        }
+        LoggerUtil.log("User store resized to " + newCapacity + " slots in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private void syncLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(dirty.take());
+                dirty.drainTo(batch);
+                sync(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LoggerUtil.log("Error syncing user store: " + e.getMessage());
+                for (Pending pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Flush the pages of a batch of dirty records, and the header once. The
+     * lock is only held to find the mappings, so writers never wait on a flush.
+     */
+    private void sync(List<Pending> batch) {
+        List<MappedByteBuffer> buffers = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        Set<Integer> slots = new HashSet<>();
+        MappedByteBuffer headerBuffer;
+        long stamp = lock.readLock();
+        try {
+            for (Pending pending : batch) {
+                if (pending.generation == generation && slots.add(pending.slot)) {
+                    buffers.add(chunk(pending.slot));
+                    offsets.add(offset(pending.slot));
+                }
+            }
+            headerBuffer = header;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (int i = 0; i < buffers.size(); i++) {
+            buffers.get(i).force(offsets.get(i), SLOT_SIZE);
+        }
+        headerBuffer.force(0, HEADER_SIZE);
+        syncs.incrementAndGet();
+        for (Pending pending : batch) {
+            pending.done.complete(null);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import common.LoggerUtil;
+import common.Metrics;
+
+/**
+ * Publishes {@link Metrics}: over HTTP at /metrics on a loopback port, and
+ * as a snapshot file rewritten at a fixed interval. The file is replaced
+ * atomically, so a reader never sees half a snapshot.
+ */
+public class MetricsExporter {
+    private final HttpServer http;
+    private final ScheduledExecutorService snapshots;
+    private final Path file;
+
+    /**
+     * @param port            loopback port for the endpoint; 0 for none
+     * @param file            snapshot file; null or empty for none
+     * @param intervalSeconds how often the snapshot is rewritten
+     */
+    public MetricsExporter(int port, String file, int intervalSeconds) throws IOException {
+        if (port > 0) {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", this::serve);
+            http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "MetricsHttp");
+                t.setDaemon(true);
+                return t;
+            }));
+            http.start();
+        } else {
+            http = null;
+        }
+        if (file != null && !file.isEmpty()) {
+            this.file = Paths.get(file);
+            snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "MetricsSnapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            snapshots.scheduleWithFixedDelay(this::writeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        } else {
+            this.file = null;
+            snapshots = null;
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void writeSnapshot() {
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, Metrics.render().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LoggerUtil.log("Error writing metrics snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop serving and write a last snapshot
+     */
+    public void close() {
+        if (http != null) {
+            http.stop(0);
+        }
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            writeSnapshot();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import common.LoggerUtil;
+
+/**
+ * Selector-based server: a small set of event-loop threads owns every socket,
+ * and the protocol state machines run as non-blocking steps on a worker pool.
+ * Idle connections cost a selection key and a few small buffers, not a thread.
+ */
+public class NioChatServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+    private final ServerContext context;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop = 0;
+
+    public NioChatServer(int port, ServerContext context, int ioThreads, int workerThreads) throws IOException {
+        this.port = port;
+        this.context = context;
+        this.loops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "ChatWorker-" + workerId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Bind the listening socket and start the event loops
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        EventLoop acceptLoop = loops[0];
+        acceptLoop.execute(() -> {
+            try {
+                serverChannel.register(acceptLoop.selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                LoggerUtil.log("Error registering server socket: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Wait until the event loops have stopped
+     */
+    public void awaitTermination() throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.thread.join();
+        }
+    }
+
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        workers.shutdown();
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                String clientAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+                System.out.println("New client connection from: " + clientAddress);
+                LoggerUtil.log("Client connection accepted from: " + clientAddress);
+
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+
+                NioClientSession session = new NioClientSession(channel, loop, workers, context);
+                context.getClients().add(session);
+                loop.execute(() -> loop.register(session));
+            }
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                System.err.println("Error accepting client connection: " + e.getMessage());
+                LoggerUtil.log("Error accepting client connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One selector thread. Every channel registered here is only ever read,
+     * written and closed from this thread; other threads post tasks to it.
+     */
+    class EventLoop implements Executor {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Shared by every session on this loop; partial frames are copied out
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean running = true;
+
+        EventLoop(int id) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this::run, "ChatEventLoop-" + id);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        private void register(NioClientSession session) {
+            try {
+                session.register(selector);
+            } catch (IOException e) {
+                LoggerUtil.log("Error registering client channel: " + e.getMessage());
+                session.close();
+            }
+        }
+
+        private void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        NioClientSession session = (NioClientSession) key.attachment();
+                        if (key.isReadable()) {
+                            session.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.onWritable();
+                        }
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                } catch (Exception e) {
+                    LoggerUtil.log("Event loop error: " + e.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioClientSession) {
+                    ((NioClientSession) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.crypto.*;
+import javax.crypto.spec.SecretKeySpec;
+import common.*;
+
+/**
+ * A client served by {@link NioChatServer}. The blocking dialogue in
+ * {@link ClientHandler#run()} is driven here as a state machine: each complete
+ * frame read by the event loop advances it by one step on the worker pool,
+ * one step at a time per session so frames are still handled in order.
+ *
+ * The session's writer is a task on the same pool: it drains the outbound
+ * queue, encrypts and encodes each frame and hands the bytes to the event
+ * loop, pausing while too many bytes are already waiting for the socket.
+ * The event loop hands everything waiting to the socket in one gathering
+ * write.
+ */
+public class NioClientSession extends ChatSession {
+    private static final int MAX_QUEUED_FRAMES = 64;
+    private static final int MAX_AUTH_ATTEMPTS = 3;
+    private static final int READ_RETAIN_SIZE = 4096;
+    // Encoded bytes allowed to wait for the socket before the writer stops draining
+    private static final long MAX_PENDING_WRITE_BYTES = 256 * 1024;
+    // Frames handed to one gathering write
+    private static final int MAX_GATHER = 64;
+
+    private enum State {
+        OPENING, KEY_EXCHANGE, CLIENT_KEY, SIGNATURE, AUTH_TYPE, USERNAME, PASSWORD, E2EE_KEY, CHAT
+    }
+
+    private final SocketChannel channel;
+    private final NioChatServer.EventLoop loop;
+    private final Executor workers;
+    private final String clientAddress;
+    private SelectionKey key;
+
+    // Inbound: owned by the event loop
+    private byte[] pending;
+    private int pendingLength = 0;
+
+    // Protocol steps: chained so they run one after another on the workers
+    private CompletableFuture<Void> processing = CompletableFuture.completedFuture(null);
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private boolean readPaused = false;
+
+    // Outbound: encoded by the writer task, written by the event loop
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingWriteBytes = new AtomicLong();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closing = false;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // Handshake state, only touched by protocol steps
+    private State state = State.OPENING;
+    private KeyPair sessionKeyPair;
+    private boolean ticketRefused;
+    private PublicKey clientPublicKey;
+    private byte[] challenge;
+    private boolean registering;
+    private String pendingUsername;
+    private int attempt = 1;
+    // The current handshake phase: when it began and its Flight Recorder event
+    private long phaseStart;
+    private HandshakeEvent phaseEvent;
+
+    public NioClientSession(SocketChannel channel, NioChatServer.EventLoop loop, Executor workers,
+                            ServerContext context) throws IOException {
+        super(context);
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.clientAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().toString();
+    }
+
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        LoggerUtil.log("Client connected from: " + clientAddress);
+        submit(this::startPhase);
+    }
+
+    // ---- Event loop side ----
+
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            int n;
+            while ((n = channel.read(readBuffer)) > 0) {
+                TransportStats.recordRead(n);
+                readBuffer.flip();
+                consume(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+                readBuffer.clear();
+                if (readPaused || closed.get()) {
+                    break;
+                }
+            }
+            if (n < 0) {
+                close();
+            }
+        } catch (Exception e) {
+            readBuffer.clear();
+            LoggerUtil.log("Client handler error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void consume(byte[] data, int offset, int length) throws Exception {
+        if (pendingLength > 0) {
+            appendPending(data, offset, length);
+            data = pending;
+            offset = 0;
+            length = pendingLength;
+        }
+
+        // Decode every complete length-prefixed frame; the prefix is checked
+        // against the frame size limit before anything is buffered for it
+        ByteBuffer input = ByteBuffer.wrap(data, offset, length);
+        int frameLength;
+        while ((frameLength = WireProtocol.frameLength(input)) >= 0
+                && input.remaining() >= WireProtocol.LENGTH_PREFIX + frameLength) {
+            // Copy the body out of the shared read buffer; the protocol step releases it
+            int frameStart = input.position() + WireProtocol.LENGTH_PREFIX;
+            ByteBuffer frame = buffers.acquire(frameLength);
+            frame.put(data, frameStart, frameLength).flip();
+            input.position(frameStart + frameLength);
+            onFrame(frame);
+        }
+        offset = input.position();
+        length = input.remaining();
+        if (data != pending) {
+            pendingLength = 0;
+            if (length > 0) {
+                appendPending(data, offset, length);
+            }
+        } else {
+            System.arraycopy(pending, offset, pending, 0, length);
+            pendingLength = length;
+            if (length == 0 && pending.length > READ_RETAIN_SIZE) {
+                pending = null;
+            }
+        }
+    }
+
+    private void appendPending(byte[] data, int offset, int length) {
+        int required = pendingLength + length;
+        if (pending == null || pending.length < required) {
+            int size = Math.max(required, pending == null ? 256 : pending.length * 2);
+            pending = pending == null ? new byte[size] : Arrays.copyOf(pending, size);
+        }
+        System.arraycopy(data, offset, pending, pendingLength, length);
+        pendingLength = required;
+    }
+
+    private void onFrame(ByteBuffer frame) {
+        if (queuedFrames.incrementAndGet() >= MAX_QUEUED_FRAMES && !readPaused) {
+            // Stop reading until the workers catch up with this client
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        submit(() -> {
+            try {
+                handleFrame(frame);
+            } finally {
+                buffers.release(frame);
+                if (queuedFrames.decrementAndGet() == MAX_QUEUED_FRAMES / 2) {
+                    loop.execute(this::resumeReading);
+                }
+            }
+        });
+    }
+
+    private void resumeReading() {
+        if (readPaused && key.isValid()) {
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    void onWritable() {
+        flushOutbound();
+    }
+
+    private void flushOutbound() {
+        flushScheduled.set(false);
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            boolean wrote = false;
+            while (true) {
+                // Gather everything queued (up to a limit) into one write call
+                int count = 0;
+                for (ByteBuffer buffer : writeQueue) {
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                    gather[count++] = buffer;
+                }
+                if (count == 0) {
+                    break;
+                }
+                long written = count == 1 ? channel.write(gather[0]) : channel.write(gather, 0, count);
+                TransportStats.recordWrite(written);
+                wrote = true;
+                if (pendingWriteBytes.addAndGet(-written) < MAX_PENDING_WRITE_BYTES && !outbound.isEmpty()) {
+                    onFrameQueued();
+                }
+                int done = 0;
+                while (done < count && !gather[done].hasRemaining()) {
+                    buffers.release(writeQueue.poll());
+                    done++;
+                }
+                Arrays.fill(gather, 0, count, null);
+                if (done < count) {
+                    // Socket buffer is full; resume when the selector says so
+                    TransportStats.recordFlush();
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (wrote) {
+                TransportStats.recordFlush();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing && !draining.get() && outbound.isEmpty()) {
+                close();
+            }
+        } catch (IOException e) {
+            LoggerUtil.log("Client handler error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushOutbound);
+        }
+    }
+
+    // ---- Writer task, run on the workers ----
+
+    @Override
+    protected void onFrameQueued() {
+        if (draining.compareAndSet(false, true)) {
+            workers.execute(this::drainOutbound);
+        }
+    }
+
+    private void drainOutbound() {
+        try {
+            OutboundQueue.Frame frame;
+            while (pendingWriteBytes.get() < MAX_PENDING_WRITE_BYTES && (frame = outbound.take(false)) != null) {
+                writeQueued(frame);
+            }
+        } catch (Exception e) {
+            LoggerUtil.log("Client writer error: " + e.getMessage());
+            close();
+        } finally {
+            draining.set(false);
+        }
+        if (!outbound.isEmpty() && pendingWriteBytes.get() < MAX_PENDING_WRITE_BYTES) {
+            onFrameQueued();
+        } else if (closing) {
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    protected void writeEncodedFrame(ByteBuffer frame) throws Exception {
+        if (closed.get()) {
+            buffers.release(frame);
+            throw new IOException("Connection closed");
+        }
+        pendingWriteBytes.addAndGet(frame.remaining());
+        writeQueue.add(frame);
+        scheduleFlush();
+    }
+
+    @Override
+    protected String getClientAddress() {
+        return clientAddress;
+    }
+
+    @Override
+    protected void disconnect() {
+        close();
+    }
+
+    /**
+     * Close once everything already queued has been written
+     */
+    private void closeAfterFlush() {
+        closing = true;
+        outbound.close();
+        onFrameQueued();
+        scheduleFlush();
+    }
+
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable closeChannel = () -> {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore cleanup errors
+            }
+        };
+        if (loop.inEventLoop()) {
+            closeChannel.run();
+        } else {
+            loop.execute(closeChannel);
+        }
+        outbound.close();
+        submit(this::leaveChat);
+    }
+
+    // ---- Protocol steps, run on the workers ----
+
+    private synchronized void submit(Runnable step) {
+        processing = processing.thenRunAsync(step, workers);
+    }
+
+    private void handleFrame(ByteBuffer frame) {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            switch (state) {
+                case OPENING:
+                    // Only a request for our key needs a key pair; after a refused
+                    // ticket the client opens again without one
+                    Object opening = WireProtocol.decode(frame);
+                    if (opening instanceof ResumeRequest && !ticketRefused) {
+                        if (resumeSession((ResumeRequest) opening)) {
+                            endPhase(KEY_EXCHANGE_TIME, "key exchange", true);
+                            state = State.E2EE_KEY;
+                        } else {
+                            ticketRefused = true;
+                        }
+                    } else if (opening instanceof KeyAgreementHello) {
+                        completeKeyAgreement((KeyAgreementHello) opening);
+                    } else if (opening instanceof KeyRequest) {
+                        state = State.KEY_EXCHANGE;
+                        sendSessionKey();
+                    } else {
+                        LoggerUtil.log("Unexpected opening frame from client: " + clientAddress);
+                        close();
+                    }
+                    break;
+                case KEY_EXCHANGE:
+                    Object reply = WireProtocol.decode(frame);
+                    if (reply instanceof PipelinedLogin) {
+                        completePipelinedLogin((PipelinedLogin) reply);
+                    } else {
+                        completeKeyExchange((byte[]) reply);
+                    }
+                    break;
+                case CLIENT_KEY:
+                    sendChallenge((PublicKey) WireProtocol.decode(frame));
+                    break;
+                case SIGNATURE:
+                    verifySignature((byte[]) WireProtocol.decode(frame));
+                    break;
+                case AUTH_TYPE:
+                case USERNAME:
+                case PASSWORD:
+                    handleAuthentication(decryptFrame(frame));
+                    break;
+                case E2EE_KEY:
+                    completeLogin((byte[]) decryptFrame(frame));
+                    break;
+                case CHAT:
+                    dispatch(decryptFrame(frame));
+                    break;
+            }
+        } catch (Exception e) {
+            LoggerUtil.log("Client handler error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void sendSessionKey() {
+        try {
+            // Get this session's RSA key pair (generated, pooled or long-term)
+            KeyPair kp = context.getKeyPairs().nextKeyPair();
+            sessionKeyPair = kp;
+
+            // Send public key to client
+            sendServerKey(kp);
+        } catch (Exception e) {
+            LoggerUtil.log("Key exchange failed for client: " + clientAddress);
+            close();
+        }
+    }
+
+    private void completeKeyExchange(byte[] encryptedAESKey) throws Exception {
+        Cipher rsaCipher = Cipher.getInstance("RSA");
+        rsaCipher.init(Cipher.DECRYPT_MODE, sessionKeyPair.getPrivate());
+        byte[] aesKeyBytes = rsaCipher.doFinal(encryptedAESKey);
+
+        setSessionKey(new SecretKeySpec(aesKeyBytes, "AES"));
+        sessionKeyPair = null;
+        endPhase(KEY_EXCHANGE_TIME, "key exchange", true);
+        LoggerUtil.log("Key exchange completed successfully");
+        state = State.CLIENT_KEY;
+    }
+
+    private void completeKeyAgreement(KeyAgreementHello clientHello) throws Exception {
+        acceptKeyAgreement(clientHello);
+        endPhase(KEY_EXCHANGE_TIME, "key exchange", true);
+        state = State.CLIENT_KEY;
+    }
+
+    private void completePipelinedLogin(PipelinedLogin login) throws Exception {
+        boolean valid = acceptPipelinedLogin(login, sessionKeyPair);
+        sessionKeyPair = null;
+        endPhase(KEY_EXCHANGE_TIME, "key exchange", valid);
+        if (!valid) {
+            close();
+        } else if (pipelinedPublicKey != null) {
+            completeLogin(pipelinedPublicKey);
+        } else {
+            // Wrong credentials: carry on with the step-by-step login
+            sendEncryptedMessage("AUTH_REQUEST");
+            state = State.AUTH_TYPE;
+        }
+    }
+
+    private void completeLogin(byte[] e2eePublicKey) throws Exception {
+        publishClientPublicKey(e2eePublicKey);
+        LoggerUtil.log("Client fully authenticated: " + username + " from " + clientAddress);
+        state = State.CHAT;
+        joinChat();
+    }
+
+    private void sendChallenge(PublicKey publicKey) throws Exception {
+        clientPublicKey = publicKey;
+        challenge = new byte[32];
+        new SecureRandom().nextBytes(challenge);
+        sendRaw(challenge);
+        state = State.SIGNATURE;
+    }
+
+    private void verifySignature(byte[] signature) throws Exception {
+        boolean rsaValid;
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initVerify(clientPublicKey);
+            sig.update(challenge);
+            rsaValid = sig.verify(signature);
+            LoggerUtil.log("RSA authentication result: " + rsaValid);
+        } catch (Exception e) {
+            LoggerUtil.log("RSA authentication error: " + e.getMessage());
+            rsaValid = false;
+        }
+        clientPublicKey = null;
+        challenge = null;
+        endPhase(RSA_AUTH_TIME, "RSA authentication", rsaValid);
+
+        if (!rsaValid) {
+            LoggerUtil.log("RSA authentication failed for client: " + clientAddress);
+            close();
+            return;
+        }
+        sendEncryptedMessage("AUTH_REQUEST");
+        state = State.AUTH_TYPE;
+    }
+
+    private void handleAuthentication(Object received) throws Exception {
+        try {
+            switch (state) {
+                case AUTH_TYPE: {
+                    String authType = (String) received;
+                    if ("LOGIN".equals(authType) || "REGISTER".equals(authType)) {
+                        registering = "REGISTER".equals(authType);
+                        sendEncryptedMessage(registering ? "REGISTER_REQUEST" : "LOGIN_REQUEST");
+                        state = State.USERNAME;
+                    } else {
+                        sendEncryptedMessage("AUTH_ERROR:Invalid authentication type");
+                        nextAttempt(false);
+                    }
+                    break;
+                }
+                case USERNAME:
+                    pendingUsername = (String) received;
+                    state = State.PASSWORD;
+                    break;
+                case PASSWORD:
+                    checkCredentials((String) received);
+                    break;
+                default:
+                    break;
+            }
+        } catch (ClassCastException e) {
+            LoggerUtil.log("Authentication attempt " + attempt + " error: " + e.getMessage());
+            sendEncryptedMessage("AUTH_ERROR:Authentication error");
+            nextAttempt(false);
+        }
+    }
+
+    private void checkCredentials(String password) throws Exception {
+        if (registering) {
+            if (userManager.registerUser(pendingUsername, password)) {
+                username = pendingUsername;
+                endPhase(USER_AUTH_TIME, "user authentication", true);
+                sendEncryptedMessage("AUTH_SUCCESS");
+                LoggerUtil.log("User registration successful: " + username);
+                state = State.E2EE_KEY;
+                return;
+            }
+            sendEncryptedMessage("AUTH_FAILED:Registration failed - username may already exist or password too weak");
+            LoggerUtil.log("Registration failed for username: " + pendingUsername);
+        } else {
+            if (userManager.authenticateUser(pendingUsername, password)) {
+                username = pendingUsername;
+                endPhase(USER_AUTH_TIME, "user authentication", true);
+                sendEncryptedMessage("AUTH_SUCCESS");
+                LoggerUtil.log("User login successful: " + username);
+                state = State.E2EE_KEY;
+                return;
+            }
+            sendEncryptedMessage("AUTH_FAILED:Invalid credentials");
+            LoggerUtil.log("Login failed for username: " + pendingUsername);
+        }
+        nextAttempt(true);
+    }
+
+    private void startPhase() {
+        phaseStart = System.nanoTime();
+        phaseEvent = new HandshakeEvent();
+        phaseEvent.begin();
+    }
+
+    /**
+     * Record the time since the last phase ended and start the next one
+     */
+    private void endPhase(Histogram histogram, String name, boolean succeeded) {
+        histogram.recordSince(phaseStart);
+        recordPhase(phaseEvent, name, succeeded);
+        startPhase();
+    }
+
+    private void nextAttempt(boolean notify) throws Exception {
+        if (notify) {
+            if (attempt < MAX_AUTH_ATTEMPTS) {
+                sendEncryptedMessage("AUTH_RETRY:Attempt " + (attempt + 1) + " of " + MAX_AUTH_ATTEMPTS);
+            } else {
+                sendEncryptedMessage("AUTH_FAILED:Maximum attempts exceeded");
+            }
+        }
+        attempt++;
+        pendingUsername = null;
+        if (attempt > MAX_AUTH_ATTEMPTS) {
+            endPhase(USER_AUTH_TIME, "user authentication", false);
+            LoggerUtil.log("User authentication failed for client: " + clientAddress);
+            closeAfterFlush();
+        } else {
+            state = State.AUTH_TYPE;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+
+/**
+ * Bounded queue of frames waiting to be written to one client, so senders
+ * never block on a slow consumer. Past the high-water mark chat messages are
+ * dropped oldest-first, while handshake, key and system frames are always
+ * kept; a client that stays over the mark for too long is disconnected.
+ */
+public class OutboundQueue {
+    private static volatile int highWaterMark = 1024;
+    private static volatile long stallTimeoutMillis = 30_000;
+    private static final LongAdder droppedFrames = new LongAdder();
+
+    /**
+     * A frame to write. Raw frames go on the wire as they are (handshake);
+     * the rest carry an {@link EncodedMessage} that the writer encrypts with
+     * the session key.
+     */
+    public static class Frame {
+        final Object payload;
+        final boolean raw;
+        final boolean droppable;
+
+        Frame(Object payload, boolean raw, boolean droppable) {
+            this.payload = payload;
+            this.raw = raw;
+            this.droppable = droppable;
+        }
+    }
+
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long overHighWaterSince = 0;
+    private boolean closed = false;
+
+    /**
+     * Set the overflow policy for all queues; called once at startup
+     */
+    public static void configure(int highWater, long stallTimeout) {
+        highWaterMark = highWater;
+        stallTimeoutMillis = stallTimeout;
+    }
+
+    public static long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    /**
+     * Queue a frame. Returns false if the client has been over the high-water
+     * mark for longer than the stall timeout and should be disconnected.
+     */
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (frames.size() >= highWaterMark) {
+                long now = System.currentTimeMillis();
+                if (overHighWaterSince == 0) {
+                    overHighWaterSince = now;
+                } else if (now - overHighWaterSince > stallTimeoutMillis) {
+                    return false;
+                }
+                if (frame.droppable && !dropOldestDroppable()) {
+                    // Nothing older may be dropped, so this message goes instead
+                    droppedFrames.increment();
+                    return true;
+                }
+            }
+            frames.addLast(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean dropOldestDroppable() {
+        Iterator<Frame> it = frames.iterator();
+        while (it.hasNext()) {
+            if (it.next().droppable) {
+                it.remove();
+                droppedFrames.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Next frame, or null once the queue is closed and drained (or is
+     * empty, when not waiting)
+     */
+    public Frame take(boolean wait) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty()) {
+                if (closed || !wait) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            Frame frame = frames.pollFirst();
+            if (frames.size() < highWaterMark) {
+                overHighWaterSince = 0;
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Next frame, waiting at most the given time; null on timeout or once
+     * the queue is closed and drained
+     */
+    public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (frames.isEmpty()) {
+                if (closed || nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            Frame frame = frames.pollFirst();
+            if (frames.size() < highWaterMark) {
+                overHighWaterSince = 0;
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting frames; those already queued are still handed out
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
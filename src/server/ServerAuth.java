@@ -4,18 +4,20 @@ import java.io.*;
 import java.security.*;
 import java.security.spec.*;
 import javax.crypto.Cipher;
+import common.FrameInputStream;
+import common.FrameOutputStream;
 
 public class ServerAuth {
-    public static boolean authenticate(ObjectInputStream in, ObjectOutputStream out) throws Exception {
-        PublicKey clientPublicKey = (PublicKey) in.readObject();
+    public static boolean authenticate(FrameInputStream in, FrameOutputStream out) throws Exception {
+        PublicKey clientPublicKey = (PublicKey) in.readFrame();
 
         // Send challenge
         byte[] challenge = new byte[32];
         new SecureRandom().nextBytes(challenge);
-        out.writeObject(challenge);
+        out.writeFrame(challenge);
 
         // Receive signature
-        byte[] signature = (byte[]) in.readObject();
+        byte[] signature = (byte[]) in.readFrame();
 
         // Verify signature
         Signature sig = Signature.getInstance("SHA256withRSA");
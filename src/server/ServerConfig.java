@@ -0,0 +1,50 @@
+package server;
+
+import java.util.*;
+
+/**
+ * Server options given on the command line as --name=value (or --flag for true)
+ */
+public class ServerConfig {
+    private final Map<String, String> options = new HashMap<>();
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.err.println("Ignoring unrecognised argument: " + arg);
+                continue;
+            }
+            String option = arg.substring(2);
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                config.options.put(option, "true");
+            } else {
+                config.options.put(option.substring(0, eq), option.substring(eq + 1));
+            }
+        }
+        return config;
+    }
+
+    public String get(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for --" + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
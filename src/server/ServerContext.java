@@ -0,0 +1,42 @@
+package server;
+
+import common.BufferPool;
+import common.PayloadCompressor;
+import common.ServerKeyPairProvider;
+
+/**
+ * Server-wide state shared by every session
+ */
+public class ServerContext {
+    private final ConnectionRegistry clients;
+    private final SessionRegistry sessions;
+    private final UserManager userManager;
+    private final ServerKeyPairProvider keyPairs;
+    private final SessionTickets tickets;
+    private final BufferPool buffers;
+    private final PayloadCompressor compressor;
+
+    public ServerContext(ConnectionRegistry clients, SessionRegistry sessions, UserManager userManager,
+                         ServerKeyPairProvider keyPairs, SessionTickets tickets, BufferPool buffers,
+                         PayloadCompressor compressor) {
+        this.clients = clients;
+        this.sessions = sessions;
+        this.userManager = userManager;
+        this.keyPairs = keyPairs;
+        this.tickets = tickets;
+        this.buffers = buffers;
+        this.compressor = compressor;
+    }
+
+    public ConnectionRegistry getClients() { return clients; }
+    public SessionRegistry getSessions() { return sessions; }
+    public UserManager getUserManager() { return userManager; }
+    public ServerKeyPairProvider getKeyPairs() { return keyPairs; }
+    public SessionTickets getTickets() { return tickets; }
+    public BufferPool getBuffers() { return buffers; }
+
+    /**
+     * Compressor offered to clients, or null when compression is disabled
+     */
+    public PayloadCompressor getCompressor() { return compressor; }
+}
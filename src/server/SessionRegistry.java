@@ -0,0 +1,66 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Authenticated sessions indexed by normalized username, so routing a
+ * private message is a hash lookup instead of a scan of every connection.
+ * A user may be logged in from several places at once.
+ *
+ * Each user's session list is immutable and swapped atomically under the
+ * map's per-key lock, so readers never block and never see a partial update.
+ */
+public class SessionRegistry {
+    private final ConcurrentHashMap<String, List<ChatSession>> sessionsByUser = new ConcurrentHashMap<>();
+
+    public static String normalize(String username) {
+        return username.toLowerCase();
+    }
+
+    public void register(String username, ChatSession session) {
+        sessionsByUser.compute(normalize(username), (key, sessions) -> {
+            List<ChatSession> updated = sessions == null ? new ArrayList<>(1) : new ArrayList<>(sessions);
+            updated.add(session);
+            return Collections.unmodifiableList(updated);
+        });
+    }
+
+    public void unregister(String username, ChatSession session) {
+        sessionsByUser.computeIfPresent(normalize(username), (key, sessions) -> {
+            List<ChatSession> updated = new ArrayList<>(sessions);
+            updated.remove(session);
+            return updated.isEmpty() ? null : Collections.unmodifiableList(updated);
+        });
+    }
+
+    /**
+     * All sessions of a user, empty if the user is not online
+     */
+    public List<ChatSession> getSessions(String username) {
+        List<ChatSession> sessions = sessionsByUser.get(normalize(username));
+        return sessions != null ? sessions : Collections.emptyList();
+    }
+
+    public void forEachSession(Consumer<ChatSession> action) {
+        for (List<ChatSession> sessions : sessionsByUser.values()) {
+            sessions.forEach(action);
+        }
+    }
+
+    /**
+     * Number of distinct users online
+     */
+    public int getUserCount() {
+        return sessionsByUser.size();
+    }
+
+    public int getSessionCount() {
+        int count = 0;
+        for (List<ChatSession> sessions : sessionsByUser.values()) {
+            count += sessions.size();
+        }
+        return count;
+    }
+}
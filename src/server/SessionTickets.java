@@ -0,0 +1,182 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import common.*;
+
+/**
+ * Issues and redeems session resumption tickets. A ticket is the username,
+ * a resumption secret and an expiry time sealed with AES-GCM under a server
+ * ticket key, so the server keeps no per-ticket state. Ticket keys rotate on
+ * a fixed interval; tickets sealed under the previous key are still honoured
+ * until the next rotation.
+ */
+public class SessionTickets {
+    private static final int KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final int NONCE_LENGTH = 32;
+    private static final int TAG_BITS = 128;
+
+    /**
+     * Identity and key of a session restored from a ticket
+     */
+    public static class Resumed {
+        private final String username;
+        private final SecretKey sessionKey;
+
+        Resumed(String username, SecretKey sessionKey) {
+            this.username = username;
+            this.sessionKey = sessionKey;
+        }
+
+        public String getUsername() { return username; }
+        public SecretKey getSessionKey() { return sessionKey; }
+    }
+
+    private static class TicketKey {
+        final int id;
+        final SecretKey key;
+        final long createdAt;
+
+        TicketKey(int id, SecretKey key, long createdAt) {
+            this.id = id;
+            this.key = key;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final long lifetimeMillis;
+    private final long rotationMillis;
+    private final SecureRandom random = new SecureRandom();
+    private volatile TicketKey currentKey;
+    private volatile TicketKey previousKey;
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder rejectedTickets = new LongAdder();
+
+    /**
+     * A lifetime of zero disables resumption; no tickets are issued and every
+     * ticket presented is refused
+     */
+    public SessionTickets(long lifetimeMillis, long rotationMillis) {
+        this.lifetimeMillis = lifetimeMillis;
+        this.rotationMillis = rotationMillis;
+        this.currentKey = newTicketKey(random.nextInt());
+    }
+
+    public boolean isEnabled() {
+        return lifetimeMillis > 0;
+    }
+
+    /**
+     * Issue a ticket for an authenticated user, or null if resumption is disabled
+     */
+    public SessionTicket issue(String username) throws GeneralSecurityException {
+        if (!isEnabled()) {
+            return null;
+        }
+        TicketKey key = rotateIfDue();
+        byte[] secret = new byte[KEY_LENGTH];
+        random.nextBytes(secret);
+        long expiresAt = System.currentTimeMillis() + lifetimeMillis;
+
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer plain = ByteBuffer.allocate(8 + KEY_LENGTH + name.length);
+        plain.putLong(expiresAt).put(secret).put(name);
+
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key.key, new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(keyIdBytes(key.id));
+        byte[] sealed = cipher.doFinal(plain.array());
+
+        ByteBuffer ticket = ByteBuffer.allocate(4 + IV_LENGTH + sealed.length);
+        ticket.putInt(key.id).put(iv).put(sealed);
+        return new SessionTicket(ticket.array(), secret, expiresAt);
+    }
+
+    /**
+     * Redeem a ticket. Returns null if it is malformed, forged, sealed under a
+     * retired key or expired.
+     */
+    public Resumed redeem(ResumeRequest request, byte[] serverNonce) {
+        try {
+            byte[] ticket = request.getTicket();
+            if (!isEnabled() || ticket == null || ticket.length < 4 + IV_LENGTH + TAG_BITS / 8
+                    || request.getNonce() == null || request.getNonce().length != NONCE_LENGTH) {
+                return null;
+            }
+            ByteBuffer in = ByteBuffer.wrap(ticket);
+            int keyId = in.getInt();
+            TicketKey key = findKey(keyId);
+            if (key == null) {
+                return null;
+            }
+            byte[] iv = new byte[IV_LENGTH];
+            in.get(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key.key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(keyIdBytes(keyId));
+            ByteBuffer plain = ByteBuffer.wrap(cipher.doFinal(ticket, 4 + IV_LENGTH, ticket.length - 4 - IV_LENGTH));
+
+            long expiresAt = plain.getLong();
+            if (System.currentTimeMillis() >= expiresAt) {
+                return null;
+            }
+            byte[] secret = new byte[KEY_LENGTH];
+            plain.get(secret);
+            String username = new String(plain.array(), plain.position(), plain.remaining(), StandardCharsets.UTF_8);
+            return new Resumed(username, SessionTicket.deriveSessionKey(secret, request.getNonce(), serverNonce));
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    public void recordFullHandshake() { fullHandshakes.increment(); }
+    public void recordResumedHandshake() { resumedHandshakes.increment(); }
+    public void recordRejectedTicket() { rejectedTickets.increment(); }
+
+    public long getFullHandshakes() { return fullHandshakes.sum(); }
+    public long getResumedHandshakes() { return resumedHandshakes.sum(); }
+    public long getRejectedTickets() { return rejectedTickets.sum(); }
+
+    private TicketKey findKey(int keyId) {
+        TicketKey current = currentKey;
+        if (current.id == keyId) {
+            return current;
+        }
+        TicketKey previous = previousKey;
+        return previous != null && previous.id == keyId ? previous : null;
+    }
+
+    private synchronized TicketKey rotateIfDue() {
+        long now = System.currentTimeMillis();
+        if (rotationMillis > 0 && now - currentKey.createdAt >= rotationMillis) {
+            previousKey = currentKey;
+            currentKey = newTicketKey(currentKey.id + 1);
+        }
+        return currentKey;
+    }
+
+    private TicketKey newTicketKey(int id) {
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        random.nextBytes(keyBytes);
+        return new TicketKey(id, new SecretKeySpec(keyBytes, "AES"), System.currentTimeMillis());
+    }
+
+    private static byte[] keyIdBytes(int keyId) {
+        return ByteBuffer.allocate(4).putInt(keyId).array();
+    }
+}
@@ -1,28 +1,62 @@
-package client;
-
-import java.util.Scanner;
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import common.AuditEvent;
+import common.AuditLog;
 import common.LoggerUtil;
+import common.PasswordHasher;
 
 /**
  * Command-line tool for user administration
  */
 public class UserAdminTool {
-    private UserManager userManager;
+    private final String storeMode;
+    private UserManager userManager; // Opened on first use
     private Scanner scanner;
 
-    public UserAdminTool() {
-        userManager = new UserManager();
+    /**
+     * @param storeMode the server's --user-store; the tool opens the same store, journal included
+     */
+    public UserAdminTool(String storeMode) {
+        this.storeMode = storeMode;
         scanner = new Scanner(System.in);
     }
 
     public static void main(String[] args) {
-        UserAdminTool tool = new UserAdminTool();
-        tool.run();
+        // Accounts created or reset here should cost what the server's do
+        PasswordHasher.configure(Integer.getInteger("chat.hash.iterations", PasswordHasher.DEFAULT_ITERATIONS));
+        // The server's --user-store; a mapped store, once created, holds the accounts
+        String storeMode = System.getProperty("chat.user.store",
+                Files.exists(Paths.get(UserStore.MAPPED_FILE)) ? "mapped" : "journal");
+        new UserAdminTool(storeMode).run();
+    }
+
+    /**
+     * The accounts, opened when an option first needs them. Opening takes
+     * the store's lock, which a running server holds, so statistics and
+     * audit queries never call this and work while the server is up.
+     * Null, once the reason has been shown, if the store cannot be opened.
+     */
+    private UserManager users() {
+        if (userManager == null) {
+            try {
+                userManager = new UserManager(1, 16, UserStore.create(storeMode, 4L << 20));
+            } catch (IOException e) {
+                System.out.println("Cannot open the user store: " + e.getMessage());
+                return null;
+            }
+        }
+        return userManager;
     }
 
     public void run() {
         System.out.println("=== User Administration Tool ===");
-        System.out.println("Total registered users: " + userManager.getUserCount());
 
         while (true) {
             showMenu();
@@ -48,6 +82,9 @@ public class UserAdminTool {
                     showSystemStats();
                     break;
                 case "7":
+                    queryAuditLog();
+                    break;
+                case "8":
                     System.out.println("Goodbye!");
                     System.exit(0);
                     break;
@@ -65,12 +102,17 @@ public class UserAdminTool {
         System.out.println("4. Deactivate user");
         System.out.println("5. Show user details");
         System.out.println("6. Show system statistics");
-        System.out.println("7. Exit");
+        System.out.println("7. Query audit log");
+        System.out.println("8. Exit");
         System.out.print("Choose option: ");
     }
 
     private void listUsers() {
-        String[] usernames = userManager.getAllUsernames();
+        UserManager users = users();
+        if (users == null) {
+            return;
+        }
+        String[] usernames = users.getAllUsernames();
         if (usernames.length == 0) {
             System.out.println("No users found.");
             return;
@@ -81,7 +123,7 @@ public class UserAdminTool {
         System.out.println("-".repeat(70));
 
         for (String username : usernames) {
-            UserManager.UserInfo info = userManager.getUserInfo(username);
+            UserManager.UserInfo info = users.getUserInfo(username);
             if (info != null) {
                 String status = info.isActive() ? "Active" : "Inactive";
                 String created = new java.util.Date(info.getCreatedDate()).toString().substring(0, 19);
@@ -96,6 +138,10 @@ public class UserAdminTool {
     }
 
     private void createUser() {
+        UserManager users = users();
+        if (users == null) {
+            return;
+        }
         System.out.println("\n=== Create New User ===");
         System.out.print("Username: ");
         String username = scanner.nextLine().trim();
@@ -122,7 +168,7 @@ public class UserAdminTool {
             return;
         }
 
-        if (userManager.registerUser(username, password)) {
+        if (users.registerUser(username, password)) {
             System.out.println("User '" + username + "' created successfully!");
         } else {
             System.out.println("Failed to create user. Username may already exist or password is too weak.");
@@ -130,11 +176,15 @@ public class UserAdminTool {
     }
 
     private void resetPassword() {
+        UserManager users = users();
+        if (users == null) {
+            return;
+        }
         System.out.println("\n=== Reset User Password ===");
         System.out.print("Username: ");
         String username = scanner.nextLine().trim();
 
-        UserManager.UserInfo info = userManager.getUserInfo(username);
+        UserManager.UserInfo info = users.getUserInfo(username);
         if (info == null) {
             System.out.println("User not found: " + username);
             return;
@@ -152,16 +202,12 @@ public class UserAdminTool {
             return;
         }
 
-        // For admin reset, we need to directly modify the user data
-        // This is a simplified approach - in production, you might want additional
-        // verification
         System.out.println("Warning: This will reset the password without verifying the old password.");
         System.out.print("Continue? (yes/no): ");
         String confirm = scanner.nextLine().trim().toLowerCase();
 
         if ("yes".equals(confirm)) {
-            // Create a temporary admin user to perform the reset
-            if (forcePasswordReset(username, newPassword)) {
+            if (users.resetPassword(username, newPassword)) {
                 System.out.println("Password reset successfully for user: " + username);
                 LoggerUtil.log("Admin password reset for user: " + username);
             } else {
@@ -172,25 +218,16 @@ public class UserAdminTool {
         }
     }
 
-    private boolean forcePasswordReset(String username, String newPassword) {
-        // This is a simple implementation - create a new user with same username
-        // In a real system, you'd modify the existing user data
-        UserManager.UserInfo existingUser = userManager.getUserInfo(username);
-        if (existingUser == null) {
-            return false;
-        }
-
-        // Deactivate old user and create new one with same username
-        userManager.deactivateUser(username);
-        return userManager.registerUser(username, newPassword);
-    }
-
     private void deactivateUser() {
+        UserManager users = users();
+        if (users == null) {
+            return;
+        }
         System.out.println("\n=== Deactivate User ===");
         System.out.print("Username: ");
         String username = scanner.nextLine().trim();
 
-        UserManager.UserInfo info = userManager.getUserInfo(username);
+        UserManager.UserInfo info = users.getUserInfo(username);
         if (info == null) {
             System.out.println("User not found: " + username);
             return;
@@ -208,7 +245,7 @@ public class UserAdminTool {
         String confirm = scanner.nextLine().trim().toLowerCase();
 
         if ("yes".equals(confirm)) {
-            if (userManager.deactivateUser(username)) {
+            if (users.deactivateUser(username)) {
                 System.out.println("User deactivated successfully: " + username);
             } else {
                 System.out.println("Failed to deactivate user: " + username);
@@ -219,11 +256,15 @@ public class UserAdminTool {
     }
 
     private void showUserDetails() {
+        UserManager users = users();
+        if (users == null) {
+            return;
+        }
         System.out.println("\n=== User Details ===");
         System.out.print("Username: ");
         String username = scanner.nextLine().trim();
 
-        UserManager.UserInfo info = userManager.getUserInfo(username);
+        UserManager.UserInfo info = users.getUserInfo(username);
         if (info == null) {
             System.out.println("User not found: " + username);
             return;
@@ -243,43 +284,102 @@ public class UserAdminTool {
 
     private void showSystemStats() {
         System.out.println("\n=== System Statistics ===");
-        System.out.println("Total registered users: " + userManager.getUserCount());
+        if (userManager != null) {
+            System.out.println("Total registered users: " + userManager.getUserCount());
+
+            String[] usernames = userManager.getAllUsernames();
+            int activeUsers = 0;
+            int inactiveUsers = 0;
+
+            for (String username : usernames) {
+                UserManager.UserInfo info = userManager.getUserInfo(username);
+                if (info != null) {
+                    if (info.isActive()) {
+                        activeUsers++;
+                    } else {
+                        inactiveUsers++;
+                    }
+                }
+            }
 
-        String[] usernames = userManager.getAllUsernames();
-        int activeUsers = 0;
-        int inactiveUsers = 0;
+            System.out.println("Active users: " + activeUsers);
+            System.out.println("Inactive users: " + inactiveUsers);
+        } else {
+            // Opening the store here would fail while the server runs, and keep it from starting otherwise
+            System.out.println("User counts: not shown until an account option (1-5) opens the user store");
+        }
+        System.out.println("Password hashing: " + PasswordHasher.PBKDF2 + ", "
+                + PasswordHasher.getIterations() + " iterations");
+        System.out.println("User store: " + storeMode);
+        System.out.println("Log file: auth_log.txt");
 
-        for (String username : usernames) {
-            UserManager.UserInfo info = userManager.getUserInfo(username);
-            if (info != null) {
-                if (info.isActive()) {
-                    activeUsers++;
-                } else {
-                    inactiveUsers++;
-                }
+        System.out.println("Audit log: " + AuditLog.DEFAULT_DIRECTORY + "/");
+
+        // Show recent account events (last 10); only the end of the newest segment is read
+        System.out.println("\nRecent activity (option 7 queries the full audit log):");
+        try {
+            List<AuditEvent> events = AuditLog.tail(AuditLog.DEFAULT_DIRECTORY, 10, null, null);
+            if (events.isEmpty()) {
+                System.out.println("  No audit events found.");
+            }
+            for (AuditEvent event : events) {
+                System.out.println("  " + event);
             }
+        } catch (Exception e) {
+            System.out.println("  Error reading audit log: " + e.getMessage());
         }
+    }
 
-        System.out.println("Active users: " + activeUsers);
-        System.out.println("Inactive users: " + inactiveUsers);
-        System.out.println("Database file: users.db");
-        System.out.println("Log file: auth_log.txt");
+    private void queryAuditLog() {
+        System.out.println("\n=== Query Audit Log ===");
+        System.out.println("1. Most recent events");
+        System.out.println("2. Events in a time range");
+        System.out.print("Choose option: ");
+        String choice = scanner.nextLine().trim();
+
+        System.out.print("Username (blank for all): ");
+        String username = scanner.nextLine().trim();
+        System.out.println("Event types: " + Arrays.toString(AuditEvent.Type.values()));
+        System.out.print("Types, comma separated (blank for all): ");
+        String typeList = scanner.nextLine().trim();
 
-        // Show recent log entries (last 10)
-        System.out.println("\nRecent activity (check auth_log.txt for full log):");
         try {
-            java.nio.file.Path logPath = java.nio.file.Paths.get("auth_log.txt");
-            if (java.nio.file.Files.exists(logPath)) {
-                java.util.List<String> lines = java.nio.file.Files.readAllLines(logPath);
-                int startIndex = Math.max(0, lines.size() - 10);
-                for (int i = startIndex; i < lines.size(); i++) {
-                    System.out.println("  " + lines.get(i));
+            Set<AuditEvent.Type> types = EnumSet.noneOf(AuditEvent.Type.class);
+            for (String type : typeList.split(",")) {
+                if (!type.isBlank()) {
+                    types.add(AuditEvent.Type.valueOf(type.trim().toUpperCase()));
                 }
+            }
+            String user = username.isEmpty() ? null : username;
+            List<AuditEvent> events;
+            if ("2".equals(choice)) {
+                DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+                System.out.print("From (yyyy-MM-dd HH:mm, blank for the beginning): ");
+                String from = scanner.nextLine().trim();
+                System.out.print("To (yyyy-MM-dd HH:mm, blank for now): ");
+                String to = scanner.nextLine().trim();
+                long fromMillis = from.isEmpty() ? 0 : LocalDateTime.parse(from, format)
+                        .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                long toMillis = to.isEmpty() ? System.currentTimeMillis() : LocalDateTime.parse(to, format)
+                        .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + 59_999;
+                events = AuditLog.range(AuditLog.DEFAULT_DIRECTORY, fromMillis, toMillis, user, types, 1000);
             } else {
-                System.out.println("  No log file found.");
+                System.out.print("How many (default 20): ");
+                String count = scanner.nextLine().trim();
+                events = AuditLog.tail(AuditLog.DEFAULT_DIRECTORY, count.isEmpty() ? 20 : Integer.parseInt(count),
+                        user, types);
+            }
+            if (events.isEmpty()) {
+                System.out.println("No matching events.");
+            }
+            for (AuditEvent event : events) {
+                System.out.println("  " + event);
+            }
+            if (events.size() == 1000) {
+                System.out.println("(First 1000 shown; narrow the range for more)");
             }
         } catch (Exception e) {
-            System.out.println("  Error reading log file: " + e.getMessage());
+            System.out.println("Query failed: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
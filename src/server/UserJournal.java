@@ -0,0 +1,357 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import common.LoggerUtil;
+
+/**
+ * Durable storage for the user map: a snapshot (the whole map, serialized
+ * as users.db always was) plus an append-only journal of the records
+ * changed since. A change costs one small record instead of a rewrite of
+ * the database.
+ *
+ * Records are written by a single thread that takes everything queued,
+ * writes it in one go and syncs once, so concurrent logins share an fsync.
+ * Each record holds the complete account, or names one removed, so
+ * replaying the journal over a snapshot that already contains some of its
+ * changes gives the same map.
+ *
+ * Compaction rotates the journal aside, writes a snapshot of the map as of
+ * the rotation to a temporary file, renames it over the old one and only
+ * then deletes the rotated journal. A crash at any point leaves a snapshot
+ * and journals that replay to the latest acknowledged state.
+ */
+public class UserJournal {
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    // Length, type, then the record; a CRC32 of type and record follows
+    private static final int HEADER_LENGTH = 5;
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+    private static final int MAX_BATCH = 1024;
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final Path rotatedFile;
+    private final long compactThreshold;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong journalBytes = new AtomicLong();
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private FileChannel journal;
+
+    private static class Pending {
+        final byte type;
+        final byte[] record; // Null for a rotation marker
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(byte type, byte[] record) {
+            this.type = type;
+            this.record = record;
+        }
+    }
+
+    /**
+     * @param snapshotFile     the serialized user map; the journals sit next to it
+     * @param compactThreshold journal size in bytes that makes {@link #needsCompaction()} true
+     */
+    public UserJournal(String snapshotFile, long compactThreshold) {
+        this.snapshotFile = Paths.get(snapshotFile);
+        this.journalFile = Paths.get(snapshotFile + ".journal");
+        this.rotatedFile = Paths.get(snapshotFile + ".journal.old");
+        this.compactThreshold = compactThreshold;
+    }
+
+    /**
+     * Read the snapshot and replay both journals over it. If anything was
+     * replayed, a fresh snapshot is written and the journals emptied, so
+     * every run starts from a compact database. Then starts the writer.
+     */
+    public Map<String, UserManager.UserData> open() throws IOException {
+        Map<String, UserManager.UserData> users = readSnapshot(snapshotFile);
+        int replayed = replay(rotatedFile, users) + replay(journalFile, users);
+        if (replayed > 0 || Files.exists(rotatedFile) || (Files.exists(journalFile) && Files.size(journalFile) > 0)) {
+            // Also drops a torn tail, which later appends would otherwise sit behind
+            LoggerUtil.log("Replayed " + replayed + " user journal records");
+            writeSnapshot(users);
+            Files.deleteIfExists(rotatedFile);
+            Files.deleteIfExists(journalFile);
+        }
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        journal.position(journal.size());
+        journalBytes.set(journal.size());
+        Thread writer = new Thread(this::writeLoop, "UserJournalWriter");
+        writer.setDaemon(true);
+        writer.start();
+        return users;
+    }
+
+    /**
+     * Queue the current state of an account. Call this where changes to
+     * the account are ordered, such as inside the map's compute for it,
+     * and wait on the result outside; the future completes once the
+     * record is on disk.
+     */
+    public CompletableFuture<Void> append(UserManager.UserData user) {
+        Pending pending = new Pending(PUT, encode(user));
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * Queue the removal of an account, ordered and waited on like {@link #append}
+     */
+    public CompletableFuture<Void> appendRemoval(String key) {
+        Pending pending = new Pending(REMOVE, key.getBytes(StandardCharsets.UTF_8));
+        queue.add(pending);
+        return pending.done;
+    }
+
+    public boolean needsCompaction() {
+        return journalBytes.get() >= compactThreshold;
+    }
+
+    /**
+     * Start a new journal once everything queued so far is written. Call
+     * this under the same lock as {@link #append}, together with taking
+     * the copy of the map that is passed to {@link #compact} afterwards.
+     */
+    public CompletableFuture<Void> rotate() {
+        Pending marker = new Pending(PUT, null);
+        queue.add(marker);
+        return marker.done;
+    }
+
+    /**
+     * Replace the snapshot with the given map, taken at the last rotation,
+     * and drop the rotated journal it makes redundant
+     */
+    public void compact(Map<String, UserManager.UserData> users) throws IOException {
+        long start = System.nanoTime();
+        writeSnapshot(users);
+        Files.deleteIfExists(rotatedFile);
+        LoggerUtil.log("User database compacted: " + users.size() + " users in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * The accounts a database holds, read without changing any of its
+     * files; used to import it into another store
+     */
+    public static Map<String, UserManager.UserData> read(String snapshotFile) throws IOException {
+        Map<String, UserManager.UserData> users = readSnapshot(Paths.get(snapshotFile));
+        replay(Paths.get(snapshotFile + ".journal.old"), users);
+        replay(Paths.get(snapshotFile + ".journal"), users);
+        return users;
+    }
+
+    public long getJournalBytes() { return journalBytes.get(); }
+    public long getRecordsWritten() { return recordsWritten.get(); }
+    public long getSyncs() { return syncs.get(); }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LoggerUtil.log("Error writing user journal: " + e.getMessage());
+                for (Pending pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write and sync the records up to each rotation marker, then rotate
+     */
+    private void writeBatch(List<Pending> batch) throws IOException {
+        int from = 0;
+        for (int i = 0; i <= batch.size(); i++) {
+            if (i < batch.size() && batch.get(i).record != null) {
+                continue;
+            }
+            writeRecords(batch.subList(from, i));
+            if (i < batch.size()) {
+                rotateJournal();
+                batch.get(i).done.complete(null);
+            }
+            from = i + 1;
+        }
+    }
+
+    private void rotateJournal() throws IOException {
+        if (Files.exists(rotatedFile)) {
+            // An earlier compaction failed before its snapshot replaced these records; keep them
+            try (FileChannel rotated = FileChannel.open(rotatedFile, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                long position = 0;
+                long size = journal.size();
+                while (position < size) {
+                    position += journal.transferTo(position, size - position, rotated);
+                }
+                rotated.force(false);
+            }
+            journal.truncate(0);
+            journal.force(false);
+        } else {
+            journal.close();
+            Files.move(journalFile, rotatedFile, StandardCopyOption.ATOMIC_MOVE);
+            journal = FileChannel.open(journalFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        journalBytes.set(0);
+    }
+
+    private void writeRecords(List<Pending> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        int size = 0;
+        for (Pending pending : records) {
+            size += HEADER_LENGTH + pending.record.length + 4;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (Pending pending : records) {
+            crc.reset();
+            crc.update(pending.type);
+            crc.update(pending.record);
+            buffer.putInt(pending.record.length).put(pending.type).put(pending.record)
+                    .putInt((int) crc.getValue());
+        }
+        buffer.flip();
+        long end = journal.size();
+        try {
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            journal.force(false);
+        } catch (IOException e) {
+            // Cut off a partial write so records appended later are not stranded behind it
+            journal.truncate(end);
+            throw e;
+        }
+        syncs.incrementAndGet();
+        recordsWritten.addAndGet(records.size());
+        journalBytes.addAndGet(size);
+        for (Pending pending : records) {
+            pending.done.complete(null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, UserManager.UserData> readSnapshot(Path snapshotFile) throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            LoggerUtil.log("User database file not found, creating new one");
+            return new HashMap<>();
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+                Files.newInputStream(snapshotFile)))) {
+            Map<String, UserManager.UserData> users = (Map<String, UserManager.UserData>) ois.readObject();
+            LoggerUtil.log("Loaded " + users.size() + " users from database");
+            return users;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unreadable user database: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write to a temporary file, sync it and rename it over the snapshot,
+     * so the snapshot on disk is always complete
+     */
+    private void writeSnapshot(Map<String, UserManager.UserData> users) throws IOException {
+        Path temp = Paths.get(snapshotFile + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp.toFile());
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(out))) {
+            oos.writeObject(users);
+            oos.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Apply a journal's records in order. A torn or corrupt record can only
+     * be the last one written before a crash; it and anything after it were
+     * never acknowledged, so replay stops there.
+     */
+    private static int replay(Path file, Map<String, UserManager.UserData> users) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                byte type;
+                byte[] record;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_LENGTH) {
+                        break;
+                    }
+                    type = in.readByte();
+                    record = new byte[length];
+                    in.readFully(record);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(type);
+                crc.update(record);
+                if ((int) crc.getValue() != checksum || (type != PUT && type != REMOVE)) {
+                    break;
+                }
+                if (type == REMOVE) {
+                    users.remove(new String(record, StandardCharsets.UTF_8));
+                } else {
+                    UserManager.UserData user = decode(record);
+                    users.put(user.getUsername().toLowerCase(), user);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] encode(UserManager.UserData user) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(user.getUsername());
+            out.writeUTF(user.getHashedPassword());
+            out.writeUTF(user.getSalt());
+            out.writeUTF(user.getHashAlgorithm());
+            out.writeInt(user.getHashIterations());
+            out.writeLong(user.getCreatedDate());
+            out.writeLong(user.getLastLoginDate());
+            out.writeBoolean(user.isActive());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static UserManager.UserData decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        return UserManager.UserData.restore(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(),
+                in.readInt(), in.readLong(), in.readLong(), in.readBoolean());
+    }
+}
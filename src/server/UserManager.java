@@ -4,21 +4,78 @@ import java.io.*;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import common.AuditEvent;
+import common.AuditLog;
+import common.Histogram;
 import common.LoggerUtil;
+import common.Metrics;
+import common.PasswordHasher;
 
+/**
+ * Registered accounts. Check-then-change sequences on the {@link UserStore}
+ * are guarded by one of a set of striped locks chosen by username, so
+ * operations on different accounts rarely wait for each other, and reads
+ * take no lock at all. Stored records are never modified in place: a
+ * change stores an updated copy, so a lock-free reader sees either the
+ * old record or the new one.
+ *
+ * Password hashing never runs under a lock: each hash is computed on a
+ * bounded auth pool sized to the cores, so a login burst uses every core,
+ * and one that outruns the pool's queue is refused instead of piling up.
+ * Nor does saving: a change is handed to the store under the lock and
+ * waited for after it is released.
+ */
 public class UserManager {
-    private static final String USER_DB_FILE = "users.db";
-    private static final String ALGORITHM = "SHA-256";
     private static final int SALT_LENGTH = 32; // 32 bytes = 256 bits
-    private static final int ITERATIONS = 10000; // PBKDF2 iterations
+    private static final int LOCK_STRIPES = 64;
     
-    private Map<String, UserData> users;
+    private static final Histogram LOGIN_TIME = Metrics.latency("user_login_seconds",
+            "Checking a login, from lookup to the saved last-login date");
+    private static final Histogram REGISTER_TIME = Metrics.latency("user_register_seconds",
+            "Registering an account");
+    private static final Histogram PASSWORD_CHANGE_TIME = Metrics.latency("user_password_change_seconds",
+            "Changing a password");
+    private static final LongAdder LOGINS = Metrics.counter("user_logins_total", "Successful logins");
+    private static final LongAdder LOGIN_FAILURES = Metrics.counter("user_login_failures_total", "Failed logins");
+    private static final Histogram HASH_TIME = Metrics.latency("auth_hash_seconds",
+            "Computing one password hash on the auth pool");
+    private static final Histogram AUTH_QUEUE_WAIT = Metrics.latency("auth_queue_wait_seconds",
+            "Time a password hash waited for an auth thread");
+    private static final LongAdder AUTH_REJECTED = Metrics.counter("auth_rejected_total",
+            "Password hashes refused because the auth queue was full");
+    private static final Histogram SAVE_WAIT = Metrics.latency("user_save_wait_seconds",
+            "Waiting for an account change to reach the store's disk");
     
-    public UserManager() {
-        users = new HashMap<>();
-        loadUsers();
+    private final UserStore users;
+    // Locks rather than synchronized methods so virtual threads never pin their carrier
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final ThreadPoolExecutor authPool;
+    
+    public UserManager() throws IOException {
+        this(Runtime.getRuntime().availableProcessors(), 256, UserStore.create("journal", 4L << 20));
+    }
+    
+    /**
+     * @param authThreads    threads computing password hashes
+     * @param authQueueLimit hashes allowed to wait for a thread before logins are refused
+     * @param users          where the accounts are kept
+     */
+    public UserManager(int authThreads, int authQueueLimit, UserStore users) {
+        AtomicInteger threadId = new AtomicInteger();
+        authPool = new ThreadPoolExecutor(authThreads, authThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(authQueueLimit), r -> {
+                    Thread t = new Thread(r, "AuthWorker-" + threadId.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.users = users;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
     }
     
     public static class UserData implements Serializable {
@@ -29,20 +86,58 @@ public class UserManager {
         private long createdDate;
         private long lastLoginDate;
         private boolean isActive;
+        // How the hash was made; absent (null/0) in records from before these fields existed
+        private String hashAlgorithm;
+        private int hashIterations;
         
-        public UserData(String username, String hashedPassword, String salt) {
+        public UserData(String username, String hashedPassword, String salt, String hashAlgorithm,
+                        int hashIterations) {
             this.username = username;
             this.hashedPassword = hashedPassword;
             this.salt = salt;
+            this.hashAlgorithm = hashAlgorithm;
+            this.hashIterations = hashIterations;
             this.createdDate = System.currentTimeMillis();
             this.lastLoginDate = 0;
             this.isActive = true;
         }
         
+        /**
+         * An account as read back from a journal or store record
+         */
+        static UserData restore(String username, String hashedPassword, String salt, String hashAlgorithm,
+                                int hashIterations, long createdDate, long lastLoginDate, boolean isActive) {
+            UserData restored = new UserData(username, hashedPassword, salt, hashAlgorithm, hashIterations);
+            restored.createdDate = createdDate;
+            restored.lastLoginDate = lastLoginDate;
+            restored.isActive = isActive;
+            return restored;
+        }
+        
+        /**
+         * A copy to change and store in place of this record
+         */
+        UserData copy() {
+            return withHash(hashedPassword, salt, hashAlgorithm, hashIterations);
+        }
+        
+        /**
+         * The same account with its password hash replaced
+         */
+        UserData withHash(String hashedPassword, String salt, String hashAlgorithm, int hashIterations) {
+            UserData updated = new UserData(username, hashedPassword, salt, hashAlgorithm, hashIterations);
+            updated.createdDate = createdDate;
+            updated.lastLoginDate = lastLoginDate;
+            updated.isActive = isActive;
+            return updated;
+        }
+        
         // Getters and setters
         public String getUsername() { return username; }
         public String getHashedPassword() { return hashedPassword; }
         public String getSalt() { return salt; }
+        public String getHashAlgorithm() { return hashAlgorithm != null ? hashAlgorithm : PasswordHasher.LEGACY_SHA256; }
+        public int getHashIterations() { return hashIterations > 0 ? hashIterations : PasswordHasher.LEGACY_ITERATIONS; }
         public long getCreatedDate() { return createdDate; }
         public long getLastLoginDate() { return lastLoginDate; }
         public boolean isActive() { return isActive; }
@@ -61,149 +156,445 @@ public class UserManager {
     }
     
     /**
-     * Hash password with salt using PBKDF2
+     * Hash on the auth pool and wait for the result. Returns null if the
+     * pool's queue is full, so the caller can refuse the request.
      */
-    private String hashPassword(String password, String salt) {
+    private String hashOnAuthPool(String password, String salt, String algorithm, int iterations) throws Exception {
+        Future<String> hash;
+        long queued = System.nanoTime();
         try {
-            MessageDigest md = MessageDigest.getInstance(ALGORITHM);
-            byte[] saltBytes = Base64.getDecoder().decode(salt);
-            
-            // Apply salt
-            md.update(saltBytes);
-            
-            // Hash with iterations (simple PBKDF2-like approach)
-            byte[] hashedPassword = password.getBytes("UTF-8");
-            for (int i = 0; i < ITERATIONS; i++) {
-                md.reset();
-                md.update(saltBytes);
-                hashedPassword = md.digest(hashedPassword);
-            }
-            
-            return Base64.getEncoder().encodeToString(hashedPassword);
-        } catch (Exception e) {
-            throw new RuntimeException("Error hashing password", e);
+            hash = authPool.submit(() -> {
+                long started = System.nanoTime();
+                AUTH_QUEUE_WAIT.record(started - queued);
+                try {
+                    return PasswordHasher.hash(password, salt, algorithm, iterations);
+                } finally {
+                    HASH_TIME.recordSince(started);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            AUTH_REJECTED.increment();
+            return null;
+        }
+        try {
+            return hash.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
         }
     }
     
     /**
      * Register a new user
      */
-    public synchronized boolean registerUser(String username, String password) {
+    public boolean registerUser(String username, String password) {
+        long start = System.nanoTime();
+        try {
+            return register(username, password);
+        } finally {
+            REGISTER_TIME.recordSince(start);
+        }
+    }
+    
+    private boolean register(String username, String password) {
         if (username == null || password == null || username.trim().isEmpty() || password.trim().isEmpty()) {
             LoggerUtil.log("Registration failed: Invalid username or password");
+            AuditLog.record(AuditEvent.Type.REGISTER_FAILED, username, "invalid username or password");
             return false;
         }
         
-        if (users.containsKey(username.toLowerCase())) {
+        if (findUser(username) != null) {
             LoggerUtil.log("Registration failed: Username '" + username + "' already exists");
+            AuditLog.record(AuditEvent.Type.REGISTER_FAILED, username, "already exists");
             return false;
         }
         
         // Validate password strength
         if (!isPasswordStrong(password)) {
             LoggerUtil.log("Registration failed: Password too weak for user '" + username + "'");
+            AuditLog.record(AuditEvent.Type.REGISTER_FAILED, username, "password too weak");
             return false;
         }
         
         try {
             String salt = generateSalt();
-            String hashedPassword = hashPassword(password, salt);
-            
-            UserData userData = new UserData(username, hashedPassword, salt);
-            users.put(username.toLowerCase(), userData);
+            int iterations = PasswordHasher.getIterations();
+            String hashedPassword = hashOnAuthPool(password, salt, PasswordHasher.PBKDF2, iterations);
+            if (hashedPassword == null) {
+                LoggerUtil.log("Registration refused for user '" + username + "': auth queue full");
+                AuditLog.record(AuditEvent.Type.REGISTER_FAILED, username, "auth queue full");
+                return false;
+            }
             
-            saveUsers();
+            UserSaveEvent event = new UserSaveEvent();
+            event.begin();
+            CompletableFuture<Void> saved;
+            UserData userData = new UserData(username, hashedPassword, salt, PasswordHasher.PBKDF2, iterations);
+            ReentrantLock lock = lockFor(username);
+            lock.lock();
+            try {
+                // Someone may have taken the name while we were hashing
+                if (users.get(username.toLowerCase()) != null) {
+                    LoggerUtil.log("Registration failed: Username '" + username + "' already exists");
+                    AuditLog.record(AuditEvent.Type.REGISTER_FAILED, username, "already exists");
+                    return false;
+                }
+                saved = users.put(username.toLowerCase(), userData);
+            } finally {
+                lock.unlock();
+            }
+            if (!awaitSaved(saved, event, "register", username)) {
+                rollBack(username, userData, null);
+                AuditLog.record(AuditEvent.Type.REGISTER_FAILED, username, "save failed");
+                return false;
+            }
             LoggerUtil.log("User registered successfully: " + username);
+            AuditLog.record(AuditEvent.Type.REGISTER, username, "");
             return true;
         } catch (Exception e) {
             LoggerUtil.log("Registration error for user '" + username + "': " + e.getMessage());
+            AuditLog.record(AuditEvent.Type.REGISTER_FAILED, username, "error: " + e.getMessage());
             return false;
         }
     }
     
+    private UserData findUser(String username) {
+        return users.get(username.toLowerCase());
+    }
+    
+    private ReentrantLock lockFor(String username) {
+        int h = username.toLowerCase().hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+    
+    /**
+     * Whether the stored account still has the password hash a caller
+     * checked against. Stores may hand out copies, so this compares values.
+     */
+    private static boolean samePassword(UserData stored, UserData checked) {
+        return stored != null && stored.getHashedPassword().equals(checked.getHashedPassword())
+                && stored.getSalt().equals(checked.getSalt());
+    }
+    
+    /**
+     * Whether two records hold the same account state, compared by value
+     */
+    private static boolean sameRecord(UserData a, UserData b) {
+        return a != null && b != null && samePassword(a, b) && a.getUsername().equals(b.getUsername())
+                && a.getHashAlgorithm().equals(b.getHashAlgorithm())
+                && a.getHashIterations() == b.getHashIterations() && a.getCreatedDate() == b.getCreatedDate()
+                && a.getLastLoginDate() == b.getLastLoginDate() && a.isActive() == b.isActive();
+    }
+    
+    /**
+     * Undo a change whose save failed, so the account is as the caller was
+     * told: put the previous record back, or remove the account if there
+     * was none. A record changed again since is left to the later change.
+     */
+    private void rollBack(String username, UserData written, UserData previous) {
+        String key = username.toLowerCase();
+        CompletableFuture<Void> restored;
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            if (!sameRecord(users.get(key), written)) {
+                LoggerUtil.log("Not rolling back unsaved change to user '" + username + "': changed again since");
+                return;
+            }
+            restored = previous == null ? users.remove(key) : users.put(key, previous);
+        } finally {
+            lock.unlock();
+        }
+        restored.whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                LoggerUtil.log("Error saving rollback of user '" + username + "': " + failure.getMessage());
+            }
+        });
+    }
+    
     /**
      * Authenticate user with username and password
      */
-    public synchronized boolean authenticateUser(String username, String password) {
+    public boolean authenticateUser(String username, String password) {
+        long start = System.nanoTime();
+        UserData verified = verifyPassword(username, password, true, AuditEvent.Type.LOGIN_FAILED);
+        LOGIN_TIME.recordSince(start);
+        if (verified == null) {
+            LOGIN_FAILURES.increment();
+            return false;
+        }
+        LOGINS.increment();
+        AuditLog.record(AuditEvent.Type.LOGIN_OK, username, "");
+        return true;
+    }
+    
+    /**
+     * Check a password, hashing outside the lock. Returns the matching
+     * record, or null if the login fails, in which case the reason is
+     * audited as the given failure. With upgradeHash, a hash made with an
+     * older setting is replaced in the background.
+     */
+    private UserData verifyPassword(String username, String password, boolean upgradeHash,
+                                    AuditEvent.Type failure) {
         if (username == null || password == null) {
             LoggerUtil.log("Authentication failed: Null credentials");
-            return false;
+            AuditLog.record(failure, username, "missing credentials");
+            return null;
         }
         
-        UserData userData = users.get(username.toLowerCase());
+        UserData userData = findUser(username);
         if (userData == null) {
             LoggerUtil.log("Authentication failed: User '" + username + "' not found");
-            return false;
+            AuditLog.record(failure, username, "unknown user");
+            return null;
         }
         
         if (!userData.isActive()) {
             LoggerUtil.log("Authentication failed: User '" + username + "' is deactivated");
-            return false;
+            AuditLog.record(failure, username, "deactivated");
+            return null;
         }
         
         try {
-            String hashedInputPassword = hashPassword(password, userData.getSalt());
-            boolean isValid = hashedInputPassword.equals(userData.getHashedPassword());
+            String hashedInputPassword = hashOnAuthPool(password, userData.getSalt(),
+                    userData.getHashAlgorithm(), userData.getHashIterations());
+            if (hashedInputPassword == null) {
+                LoggerUtil.log("Authentication refused for user '" + username + "': auth queue full");
+                AuditLog.record(failure, username, "auth queue full");
+                return null;
+            }
+            boolean isValid = MessageDigest.isEqual(hashedInputPassword.getBytes("UTF-8"),
+                    userData.getHashedPassword().getBytes("UTF-8"));
             
-            if (isValid) {
-                userData.setLastLoginDate(System.currentTimeMillis());
-                saveUsers();
-                LoggerUtil.log("Authentication successful: " + username);
-            } else {
+            if (!isValid) {
                 LoggerUtil.log("Authentication failed: Invalid password for user '" + username + "'");
+                AuditLog.record(failure, username, "wrong password");
+                return null;
             }
-            
-            return isValid;
+            UserSaveEvent event = new UserSaveEvent();
+            event.begin();
+            CompletableFuture<Void> saved;
+            ReentrantLock lock = lockFor(username);
+            lock.lock();
+            try {
+                // The password may have changed, or the account been deactivated, meanwhile
+                UserData current = users.get(username.toLowerCase());
+                if (!samePassword(current, userData) || !current.isActive()) {
+                    LoggerUtil.log("Authentication failed: Account '" + username + "' changed during login");
+                    AuditLog.record(failure, username, "account changed during login");
+                    return null;
+                }
+                userData = current.copy();
+                userData.setLastLoginDate(System.currentTimeMillis());
+                saved = users.put(username.toLowerCase(), userData);
+            } finally {
+                lock.unlock();
+            }
+            // Only the last login date is lost if this save fails, so the login stands
+            awaitSaved(saved, event, "login", username);
+            LoggerUtil.log("Authentication successful: " + username);
+            if (upgradeHash && PasswordHasher.needsRehash(userData.getHashAlgorithm(), userData.getHashIterations())) {
+                scheduleRehash(userData, password);
+            }
+            return userData;
         } catch (Exception e) {
             LoggerUtil.log("Authentication error for user '" + username + "': " + e.getMessage());
-            return false;
+            AuditLog.record(failure, username, "error: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Re-hash a just-verified password with the current setting on the auth
+     * pool. Skipped if the pool is busy; the next login tries again.
+     */
+    private void scheduleRehash(UserData userData, String password) {
+        try {
+            authPool.execute(() -> {
+                String salt = generateSalt();
+                int iterations = PasswordHasher.getIterations();
+                String hashedPassword = PasswordHasher.hash(password, salt, PasswordHasher.PBKDF2, iterations);
+                String key = userData.getUsername().toLowerCase();
+                UserSaveEvent event = new UserSaveEvent();
+                event.begin();
+                CompletableFuture<Void> saved;
+                ReentrantLock lock = lockFor(key);
+                lock.lock();
+                try {
+                    // Leave the record alone if it changed while we were hashing
+                    UserData current = users.get(key);
+                    if (!samePassword(current, userData)) {
+                        return;
+                    }
+                    saved = users.put(key, current.withHash(hashedPassword, salt, PasswordHasher.PBKDF2, iterations));
+                } finally {
+                    lock.unlock();
+                }
+                // Don't hold an auth thread while the change is synced
+                saved.whenComplete((ignored, failure) -> {
+                    if (saveFinished(failure, event, "rehash", userData.getUsername())) {
+                        LoggerUtil.log("Password hash upgraded for user: " + userData.getUsername()
+                                + " (" + PasswordHasher.PBKDF2 + ", " + iterations + " iterations)");
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // Auth pool busy; not worth delaying the login for
         }
     }
     
     /**
      * Change user password
      */
-    public synchronized boolean changePassword(String username, String oldPassword, String newPassword) {
-        if (!authenticateUser(username, oldPassword)) {
+    public boolean changePassword(String username, String oldPassword, String newPassword) {
+        long start = System.nanoTime();
+        try {
+            return updatePassword(username, oldPassword, newPassword);
+        } finally {
+            PASSWORD_CHANGE_TIME.recordSince(start);
+        }
+    }
+    
+    private boolean updatePassword(String username, String oldPassword, String newPassword) {
+        UserData userData = verifyPassword(username, oldPassword, false, AuditEvent.Type.PASSWORD_CHANGE_FAILED);
+        if (userData == null) {
             return false;
         }
         
         if (!isPasswordStrong(newPassword)) {
             LoggerUtil.log("Password change failed: New password too weak for user '" + username + "'");
+            AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE_FAILED, username, "new password too weak");
             return false;
         }
         
         try {
-            UserData userData = users.get(username.toLowerCase());
             String newSalt = generateSalt();
-            String newHashedPassword = hashPassword(newPassword, newSalt);
-            
-            // Create new UserData with updated password
-            UserData updatedData = new UserData(userData.getUsername(), newHashedPassword, newSalt);
-            updatedData.setLastLoginDate(userData.getLastLoginDate());
-            users.put(username.toLowerCase(), updatedData);
+            int iterations = PasswordHasher.getIterations();
+            String newHashedPassword = hashOnAuthPool(newPassword, newSalt, PasswordHasher.PBKDF2, iterations);
+            if (newHashedPassword == null) {
+                LoggerUtil.log("Password change refused for user '" + username + "': auth queue full");
+                AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE_FAILED, username, "auth queue full");
+                return false;
+            }
             
-            saveUsers();
+            UserSaveEvent event = new UserSaveEvent();
+            event.begin();
+            CompletableFuture<Void> saved;
+            UserData previous;
+            UserData updatedData;
+            ReentrantLock lock = lockFor(username);
+            lock.lock();
+            try {
+                // Only replace the record the old password was checked against
+                previous = users.get(username.toLowerCase());
+                if (!samePassword(previous, userData)) {
+                    LoggerUtil.log("Password change failed: Account '" + username + "' changed meanwhile");
+                    AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE_FAILED, username, "account changed meanwhile");
+                    return false;
+                }
+                // Create new UserData with updated password
+                updatedData = new UserData(userData.getUsername(), newHashedPassword, newSalt,
+                        PasswordHasher.PBKDF2, iterations);
+                updatedData.setLastLoginDate(userData.getLastLoginDate());
+                saved = users.put(username.toLowerCase(), updatedData);
+            } finally {
+                lock.unlock();
+            }
+            if (!awaitSaved(saved, event, "password change", username)) {
+                rollBack(username, updatedData, previous);
+                AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE_FAILED, username, "save failed");
+                return false;
+            }
             LoggerUtil.log("Password changed successfully for user: " + username);
+            AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE, username, "");
             return true;
         } catch (Exception e) {
             LoggerUtil.log("Password change error for user '" + username + "': " + e.getMessage());
+            AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE_FAILED, username, "error: " + e.getMessage());
             return false;
         }
     }
     
     /**
-     * Deactivate user account
+     * Set a new password without the old one, for the admin tool. The
+     * account keeps its dates and active state.
      */
-    public synchronized boolean deactivateUser(String username) {
-        UserData userData = users.get(username.toLowerCase());
-        if (userData == null) {
+    public boolean resetPassword(String username, String newPassword) {
+        if (newPassword == null || !isPasswordStrong(newPassword)) {
+            LoggerUtil.log("Password reset failed: New password too weak for user '" + username + "'");
+            AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE_FAILED, username, "admin reset: new password too weak");
+            return false;
+        }
+        
+        try {
+            String salt = generateSalt();
+            int iterations = PasswordHasher.getIterations();
+            String hashedPassword = hashOnAuthPool(newPassword, salt, PasswordHasher.PBKDF2, iterations);
+            if (hashedPassword == null) {
+                LoggerUtil.log("Password reset refused for user '" + username + "': auth queue full");
+                return false;
+            }
+            
+            UserSaveEvent event = new UserSaveEvent();
+            event.begin();
+            CompletableFuture<Void> saved;
+            UserData current;
+            UserData reset;
+            ReentrantLock lock = lockFor(username);
+            lock.lock();
+            try {
+                current = users.get(username.toLowerCase());
+                if (current == null) {
+                    return false;
+                }
+                reset = current.withHash(hashedPassword, salt, PasswordHasher.PBKDF2, iterations);
+                saved = users.put(username.toLowerCase(), reset);
+            } finally {
+                lock.unlock();
+            }
+            if (!awaitSaved(saved, event, "password reset", username)) {
+                rollBack(username, reset, current);
+                AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE_FAILED, username, "admin reset: save failed");
+                return false;
+            }
+            LoggerUtil.log("Password reset for user: " + username);
+            AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE, username, "admin reset");
+            return true;
+        } catch (Exception e) {
+            LoggerUtil.log("Password reset error for user '" + username + "': " + e.getMessage());
+            AuditLog.record(AuditEvent.Type.PASSWORD_CHANGE_FAILED, username, "admin reset error: " + e.getMessage());
             return false;
         }
+    }
+    
+    /**
+     * Deactivate user account
+     */
+    public boolean deactivateUser(String username) {
+        UserSaveEvent event = new UserSaveEvent();
+        event.begin();
+        CompletableFuture<Void> saved;
+        UserData previous;
+        UserData userData;
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            previous = users.get(username.toLowerCase());
+            if (previous == null) {
+                return false;
+            }
         
-        userData.setActive(false);
-        saveUsers();
+            userData = previous.copy();
+            userData.setActive(false);
+            saved = users.put(username.toLowerCase(), userData);
+        } finally {
+            lock.unlock();
+        }
+        if (!awaitSaved(saved, event, "deactivate", username)) {
+            rollBack(username, userData, previous);
+            return false;
+        }
         LoggerUtil.log("User deactivated: " + username);
+        AuditLog.record(AuditEvent.Type.DEACTIVATE, username, "");
         return true;
     }
     
@@ -256,39 +647,54 @@ public class UserManager {
     }
     
     /**
-     * Load users from encrypted file
+     * Wait until a change handed to the store is on disk, then commit its
+     * Flight Recorder event, begun before the account's lock was taken.
+     * Returns false if the change could not be saved.
      */
-    @SuppressWarnings("unchecked")
-    private void loadUsers() {
+    private boolean awaitSaved(CompletableFuture<Void> saved, UserSaveEvent event, String operation, String username) {
+        long start = System.nanoTime();
+        Throwable failure = null;
         try {
-            File file = new File(USER_DB_FILE);
-            if (!file.exists()) {
-                LoggerUtil.log("User database file not found, creating new one");
-                return;
-            }
-            
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                users = (Map<String, UserData>) ois.readObject();
-                LoggerUtil.log("Loaded " + users.size() + " users from database");
-            }
-        } catch (Exception e) {
-            LoggerUtil.log("Error loading user database: " + e.getMessage());
-            users = new HashMap<>();
+            saved.join();
+        } catch (CompletionException e) {
+            failure = e;
+        } finally {
+            SAVE_WAIT.recordSince(start);
         }
+        return saveFinished(failure, event, operation, username);
     }
     
     /**
-     * Save users to encrypted file
+     * Log a failed save and commit the save's event; returns whether it
+     * succeeded
      */
-    private void saveUsers() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USER_DB_FILE))) {
-            oos.writeObject(users);
-            LoggerUtil.log("User database saved successfully");
-        } catch (Exception e) {
-            LoggerUtil.log("Error saving user database: " + e.getMessage());
+    private boolean saveFinished(Throwable failure, UserSaveEvent event, String operation, String username) {
+        boolean succeeded = failure == null;
+        if (!succeeded) {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                    ? failure.getCause() : failure;
+            LoggerUtil.log("Error saving user database (" + operation + " '" + username + "'): "
+                    + cause.getMessage());
         }
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.username = username;
+            event.store = users.getClass().getSimpleName();
+            event.accounts = users.size();
+            event.succeeded = succeeded;
+            event.commit();
+        }
+        return succeeded;
     }
     
+    public long getStoreWrites() { return users.getWrites(); }
+    public long getStoreSyncs() { return users.getSyncs(); }
+    
+    /**
+     * Password hashes waiting for an auth thread
+     */
+    public int getAuthQueueDepth() { return authPool.getQueue().size(); }
+    
     /**
      * Get total number of registered users
      */
@@ -300,6 +706,6 @@ public class UserManager {
      * List all usernames (for admin purposes)
      */
     public String[] getAllUsernames() {
-        return users.keySet().toArray(new String[0]);
+        return users.usernames();
     }
 }
\ No newline at end of file
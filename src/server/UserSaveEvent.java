@@ -0,0 +1,30 @@
+package server;
+
+import jdk.jfr.*;
+
+/**
+ * Flight Recorder event for one account change, from taking the account's
+ * lock to the change being durable in the user store
+ */
+@Name("chat.UserSave")
+@Label("User Save")
+@Description("An account change written to the user store and waited on until durable")
+@Category({"Secure Chat", "User Store"})
+@StackTrace(false)
+public class UserSaveEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Username")
+    String username;
+
+    @Label("Store")
+    String store;
+
+    @Label("Accounts")
+    @Description("Accounts in the store after the change")
+    int accounts;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where registered accounts are kept, keyed by lower-case username.
+ *
+ * journal - the whole map on the heap, saved as users.db plus a journal of changes (the default)
+ * mapped  - fixed-size records in a memory-mapped, hash-indexed file, users.map; nothing is
+ *           loaded at startup and accounts are paged in as they are looked up
+ *
+ * A store is safe to call from any thread. Check-then-act sequences are
+ * UserManager's job; a store only keeps single reads and writes consistent.
+ */
+public abstract class UserStore {
+    static final String JOURNAL_FILE = "users.db";
+    static final String MAPPED_FILE = "users.map";
+    static final String LOCK_FILE = "users.lock";
+
+    // Holds the lock on LOCK_FILE for as long as the store is in use
+    private FileChannel lockChannel;
+
+    /**
+     * The account stored under a lower-case username, or null
+     */
+    public abstract UserManager.UserData get(String key);
+
+    /**
+     * Store a new or changed account. The change is visible to get() at
+     * once; the future completes when it is durable, and should be waited
+     * on after releasing any lock held while calling this.
+     */
+    public abstract CompletableFuture<Void> put(String key, UserManager.UserData user);
+
+    /**
+     * Remove an account, as put does a change; used to undo a registration
+     * whose save failed
+     */
+    public abstract CompletableFuture<Void> remove(String key);
+
+    public abstract int size();
+
+    public abstract String[] usernames();
+
+    /** Account records written */
+    public abstract long getWrites();
+
+    /** Syncs to disk those writes were grouped into */
+    public abstract long getSyncs();
+
+    /**
+     * Open the store of the given mode. Only one process may have the
+     * accounts open at a time, so the admin tool cannot change them behind
+     * a running server's back; the second to try gets an IOException.
+     */
+    public static UserStore create(String mode, long journalCompactBytes) throws IOException {
+        FileChannel lock = lock();
+        UserStore store;
+        try {
+            switch (mode) {
+                case "journal":
+                    store = new JournalUserStore(JOURNAL_FILE, journalCompactBytes);
+                    break;
+                case "mapped":
+                    store = MappedUserStore.open(MAPPED_FILE, JOURNAL_FILE);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown user store: " + mode);
+            }
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+        store.lockChannel = lock;
+        return store;
+    }
+
+    /**
+     * An exclusive lock on users.lock, released when the process exits
+     */
+    private static FileChannel lock() throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.tryLock() != null) {
+                return channel;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Already open in this process
+        }
+        channel.close();
+        throw new IOException("The user store is in use by another process; stop the server first");
+    }
+}